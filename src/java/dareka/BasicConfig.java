@@ -1,43 +1,70 @@
-package dareka;
-
-import java.io.File;
-import java.util.Properties;
-
-import dareka.common.Config;
-
-/**
- * Implementation for basic NicoCache configuration.
- *
- */
-public class BasicConfig extends Config {
-    public BasicConfig(File configFile) {
-        super(configFile);
-    }
-
-    @Override
-    protected String doGetConfigFileComments() {
-        return "NicoCache config file";
-    }
-
-    @Override
-    protected void doSetDefaults(Properties properties) {
-        properties.setProperty("listenPort", "8080");
-        properties.setProperty("proxyHost", "");
-        properties.setProperty("proxyPort", "8081");
-        properties.setProperty("title", "true");
-        properties.setProperty("touchCache", "true");
-        properties.setProperty("readTimeout", "600000");
-        properties.setProperty("fileNameCharset", "");
-    }
-
-    @Override
-    protected String doValidateValue(String key, String value) {
-        if ("readTimeout".equals(key)) {
-            if (Integer.valueOf(value).intValue() < 0) {
-                return "0";
-            }
-        }
-
-        return value;
-    }
-}
+package dareka;
+
+import java.io.File;
+import java.util.Properties;
+
+import dareka.common.Config;
+
+/**
+ * Implementation for basic NicoCache configuration.
+ *
+ */
+public class BasicConfig extends Config {
+    public BasicConfig(File configFile) {
+        super(configFile);
+    }
+
+    @Override
+    protected String doGetConfigFileComments() {
+        return "NicoCache config file";
+    }
+
+    @Override
+    protected void doSetDefaults(Properties properties) {
+        properties.setProperty("listenPort", "8080");
+        properties.setProperty("proxyHost", "");
+        properties.setProperty("proxyPort", "8081");
+        properties.setProperty("title", "true");
+        properties.setProperty("titleCacheSize", "100000");
+        properties.setProperty("titleStore", "true");
+        properties.setProperty("titleThreads", "2");
+        properties.setProperty("titleTimeout", "10000");
+        properties.setProperty("touchCache", "true");
+        properties.setProperty("cacheIndex", "true");
+        properties.setProperty("cacheMaxSize", "0");
+        properties.setProperty("cacheHighWatermark", "95");
+        properties.setProperty("cacheLowWatermark", "90");
+        properties.setProperty("cacheEvictionPolicy", "lru");
+        properties.setProperty("cacheLayout", "flat");
+        properties.setProperty("cacheVolumes", "");
+        properties.setProperty("cacheWriteBehindBuffers", "128");
+        properties.setProperty("cacheWriteBehindFull", "block");
+        properties.setProperty("readTimeout", "600000");
+        properties.setProperty("fileNameCharset", "");
+        properties.setProperty("commentStore", "false");
+        properties.setProperty("commentArchive", "false");
+        properties.setProperty("commentArchiveSegmentSize", "64");
+        properties.setProperty("commentFallback", "off");
+        properties.setProperty("commentFallbackTimeout", "3000");
+    }
+
+    @Override
+    protected String doValidateValue(String key, String value) {
+        if ("readTimeout".equals(key)) {
+            if (Integer.valueOf(value).intValue() < 0) {
+                return "0";
+            }
+        }
+
+        if ("cacheHighWatermark".equals(key) || "cacheLowWatermark".equals(key)) {
+            int percentage = Integer.valueOf(value).intValue();
+            if (percentage < 1) {
+                return "1";
+            } else if (percentage > 100) {
+                return "100";
+            }
+        }
+
+        return value;
+    }
+}
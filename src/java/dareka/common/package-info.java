@@ -1,12 +1,12 @@
-/**
- * Provides common utility classes.
- *
- * <p>It is recommended that the classes in this package do NOT have any
- * knowledge regarding even NicoCache. In other words, the classes
- * should be able to be reused in other projects, which include
- * NicoCache derivatives. It also helps to avoid conflict among derivatives.</p>
- *
- * <p>This package is the most bottom layer in the architecture.
- *  Therefore, this package should not refer any other packages.</p>
- */
-package dareka.common;
+/**
+ * Provides common utility classes.
+ *
+ * <p>It is recommended that the classes in this package do NOT have any
+ * knowledge regarding even NicoCache. In other words, the classes
+ * should be able to be reused in other projects, which include
+ * NicoCache derivatives. It also helps to avoid conflict among derivatives.</p>
+ *
+ * <p>This package is the most bottom layer in the architecture.
+ *  Therefore, this package should not refer any other packages.</p>
+ */
+package dareka.common;
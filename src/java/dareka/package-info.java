@@ -1,7 +1,7 @@
-/**
- * Provides entry point and initialization.
- *
- * <p>This package is the most top layer in the architecture.
- *  Therefore, no other packages should refer this package.</p>
- */
+/**
+ * Provides entry point and initialization.
+ *
+ * <p>This package is the most top layer in the architecture.
+ *  Therefore, no other packages should refer this package.</p>
+ */
 package dareka;
\ No newline at end of file
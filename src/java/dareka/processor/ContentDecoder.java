@@ -0,0 +1,237 @@
+package dareka.processor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import dareka.common.Logger;
+
+/**
+ * Incremental version of {@link HttpUtil#getDecodedInputStream(byte[], String)}.
+ * The body is given chunk by chunk while it is transferred, and each byte is
+ * inflated and decoded only once, so the whole body need not be buffered.
+ *
+ * <p>
+ * The instance must be released by {@link #end()}. It is not thread safe.
+ */
+public class ContentDecoder {
+    private static final int BUFFER_SIZE = 8192;
+
+    // flags of gzip header. see RFC 1952
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private Inflater inflater;
+    /** the gzip header which is not completed yet, or null if not gzip. */
+    private byte[] gzipHeader;
+    private int gzipHeaderLength = 0;
+    private final byte[] inflated = new byte[BUFFER_SIZE];
+
+    private final CharsetDecoder charsetDecoder;
+    private ByteBuffer undecoded;
+    private CharBuffer decoded;
+
+    /**
+     * @param contentEncoding the value of Content-Encoding. may be null.
+     * @param charset charset to decode the content to text. may be null if
+     * text is not needed.
+     */
+    public ContentDecoder(String contentEncoding, Charset charset) {
+        if (HttpHeader.CONTENT_ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            inflater = new Inflater(true);
+            gzipHeader = new byte[64];
+        } else if (HttpHeader.CONTENT_ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            inflater = new Inflater();
+        } else if (contentEncoding != null
+                && !HttpHeader.IDENTITY.equalsIgnoreCase(contentEncoding)) {
+            Logger.warning("unknown Content-Encoding: " + contentEncoding);
+        }
+
+        if (charset != null) {
+            charsetDecoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            undecoded = ByteBuffer.allocate(BUFFER_SIZE);
+            decoded = CharBuffer.allocate(BUFFER_SIZE);
+        } else {
+            charsetDecoder = null;
+        }
+    }
+
+    /**
+     * Decode a chunk of the body. Data after the end of the compressed
+     * stream is ignored.
+     *
+     * @param buf chunk of the body.
+     * @param off offset of the chunk.
+     * @param len length of the chunk.
+     * @param out stream to write the inflated bytes. may be null.
+     * @param text buffer to append the decoded text. may be null.
+     * @throws IOException if the compressed data is broken, or on writing
+     * to out.
+     */
+    public void decode(byte[] buf, int off, int len, OutputStream out,
+            StringBuilder text) throws IOException {
+        if (inflater == null) {
+            output(buf, off, len, out, text);
+            return;
+        }
+
+        if (gzipHeader != null) {
+            int consumed = readGzipHeader(buf, off, len);
+            off += consumed;
+            len -= consumed;
+            if (gzipHeader != null) {
+                return;
+            }
+        }
+
+        if (inflater.finished() || len == 0) {
+            return;
+        }
+
+        inflater.setInput(buf, off, len);
+        try {
+            while (true) {
+                int n = inflater.inflate(inflated);
+                if (n > 0) {
+                    output(inflated, 0, n, out, text);
+                } else if (inflater.finished() || inflater.needsInput()) {
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("preset dictionary is needed");
+                }
+            }
+        } catch (DataFormatException e) {
+            ZipException ze = new ZipException(e.getMessage());
+            ze.initCause(e);
+            throw ze;
+        }
+    }
+
+    /**
+     * @return true if the end of the compressed stream has been reached.
+     * always false if not compressed.
+     */
+    public boolean isFinished() {
+        return inflater != null && inflater.finished();
+    }
+
+    /**
+     * Release the native resources.
+     */
+    public void end() {
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Accumulate the header and parse it when it is completed.
+     *
+     * @return the number of bytes consumed from buf.
+     */
+    private int readGzipHeader(byte[] buf, int off, int len)
+            throws ZipException {
+        for (int i = 0; i < len; i++) {
+            if (gzipHeaderLength == gzipHeader.length) {
+                byte[] newHeader = new byte[gzipHeader.length * 2];
+                System.arraycopy(gzipHeader, 0, newHeader, 0, gzipHeaderLength);
+                gzipHeader = newHeader;
+            }
+            gzipHeader[gzipHeaderLength++] = buf[off + i];
+
+            if (isGzipHeaderCompleted()) {
+                gzipHeader = null;
+                return i + 1;
+            }
+        }
+        return len;
+    }
+
+    private boolean isGzipHeaderCompleted() throws ZipException {
+        byte[] h = gzipHeader;
+        int n = gzipHeaderLength;
+        if (n >= 2 && ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b)) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (n < 10) {
+            return false;
+        }
+
+        int flags = h[3] & 0xff;
+        int pos = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (n < pos + 2) {
+                return false;
+            }
+            pos += 2 + ((h[pos] & 0xff) | ((h[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(h, pos, n);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(h, pos, n);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        return pos == n;
+    }
+
+    /**
+     * @return the position after the terminator, or a position beyond n if
+     * the terminator is not received yet.
+     */
+    private static int skipZeroTerminated(byte[] h, int pos, int n) {
+        for (int i = pos; i < n; i++) {
+            if (h[i] == 0) {
+                return i + 1;
+            }
+        }
+        return Integer.MAX_VALUE / 2;
+    }
+
+    private void output(byte[] buf, int off, int len, OutputStream out,
+            StringBuilder text) throws IOException {
+        if (out != null) {
+            out.write(buf, off, len);
+        }
+        if (text != null && charsetDecoder != null) {
+            decodeText(buf, off, len, text);
+        }
+    }
+
+    private void decodeText(byte[] buf, int off, int len, StringBuilder text) {
+        while (len > 0) {
+            int n = Math.min(len, undecoded.remaining());
+            undecoded.put(buf, off, n);
+            off += n;
+            len -= n;
+
+            undecoded.flip();
+            while (true) {
+                // malformed input is replaced, so the result is overflow
+                // or underflow, and underflow leaves an incomplete character.
+                boolean overflow =
+                        charsetDecoder.decode(undecoded, decoded, false).isOverflow();
+                decoded.flip();
+                text.append(decoded);
+                decoded.clear();
+                if (!overflow) {
+                    break;
+                }
+            }
+            undecoded.compact();
+        }
+    }
+}
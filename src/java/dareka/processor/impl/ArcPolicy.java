@@ -0,0 +1,170 @@
+package dareka.processor.impl;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha), measured in bytes instead
+ * of the number of entries.
+ *
+ * <p>
+ * T1 holds caches seen once recently, T2 holds caches seen at least twice.
+ * B1 and B2 remember the ids (not the files) evicted from T1 and T2. A
+ * request for an id in B1 means T1 was too small, so the target size of T1
+ * grows, and vice versa. Such a cache goes into T2 when it is stored again.
+ */
+class ArcPolicy implements EvictionPolicy {
+    // all of them are ordered from the least recently used.
+    private final Segment t1 = new Segment();
+    private final Segment t2 = new Segment();
+    private final Segment b1 = new Segment();
+    private final Segment b2 = new Segment();
+    // ids which hit the ghosts and are not stored yet.
+    private final Set<String> ghostHits = new HashSet<String>();
+    private long capacity = Long.MAX_VALUE;
+    private long target = 0; // target size of T1
+
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+        target = Math.min(target, capacity);
+    }
+
+    public void onAdd(String id, long size) {
+        t1.remove(id);
+        t2.remove(id);
+        if (ghostHits.remove(id)) {
+            t2.put(id, size);
+        } else {
+            t1.put(id, size);
+        }
+        b1.remove(id);
+        b2.remove(id);
+        trimGhosts();
+    }
+
+    public void onAccess(String id) {
+        long size = t1.remove(id);
+        if (size >= 0) {
+            t2.put(id, size);
+            return;
+        }
+        size = t2.remove(id);
+        if (size >= 0) {
+            t2.put(id, size);
+            return;
+        }
+
+        size = b1.get(id);
+        if (size >= 0) {
+            // in double, because the product of sizes in bytes overflows.
+            long delta = (long) Math.max(size,
+                    (double) size * b2.bytes / Math.max(b1.bytes, 1));
+            target += Math.min(delta, capacity - target);
+            ghostHits.add(id);
+            return;
+        }
+        size = b2.get(id);
+        if (size >= 0) {
+            long delta = (long) Math.max(size,
+                    (double) size * b1.bytes / Math.max(b2.bytes, 1));
+            target -= Math.min(delta, target);
+            ghostHits.add(id);
+        }
+    }
+
+    public void onRemove(String id) {
+        long size = t1.remove(id);
+        if (size >= 0) {
+            b1.put(id, size);
+        } else {
+            size = t2.remove(id);
+            if (size >= 0) {
+                b2.put(id, size);
+            }
+        }
+        ghostHits.remove(id);
+        trimGhosts();
+    }
+
+    public String selectVictim(Guard guard) {
+        String victim;
+        if (t1.bytes > 0 && (t1.bytes > target || t2.bytes == 0)) {
+            victim = t1.selectVictim(guard);
+            if (victim == null) {
+                victim = t2.selectVictim(guard);
+            }
+        } else {
+            victim = t2.selectVictim(guard);
+            if (victim == null) {
+                victim = t1.selectVictim(guard);
+            }
+        }
+        return victim;
+    }
+
+    private void trimGhosts() {
+        while (t1.bytes + b1.bytes > capacity && b1.bytes > 0) {
+            ghostHits.remove(b1.removeEldest());
+        }
+        long limit = capacity > Long.MAX_VALUE / 2 ? Long.MAX_VALUE : 2 * capacity;
+        while (t1.bytes + t2.bytes + b1.bytes + b2.bytes > limit
+                && b2.bytes > 0) {
+            ghostHits.remove(b2.removeEldest());
+        }
+    }
+
+    /**
+     * LRU list with the total size.
+     */
+    private static class Segment {
+        private final LinkedHashMap<String, Long> entries =
+                new LinkedHashMap<String, Long>();
+        long bytes = 0;
+
+        void put(String id, long size) {
+            remove(id);
+            entries.put(id, Long.valueOf(size));
+            bytes += size;
+        }
+
+        /**
+         * @return the size, or -1 if not found.
+         */
+        long get(String id) {
+            Long size = entries.get(id);
+            return size == null ? -1 : size.longValue();
+        }
+
+        /**
+         * @return the size, or -1 if not found.
+         */
+        long remove(String id) {
+            Long size = entries.remove(id);
+            if (size == null) {
+                return -1;
+            }
+            bytes -= size.longValue();
+            return size.longValue();
+        }
+
+        String removeEldest() {
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            Map.Entry<String, Long> e = it.next();
+            it.remove();
+            bytes -= e.getValue().longValue();
+            return e.getKey();
+        }
+
+        String selectVictim(Guard guard) {
+            for (String id : entries.keySet()) {
+                if (guard.isEvictable(id)) {
+                    return id;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -1,437 +1,1902 @@
-package dareka.processor.impl;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.channels.FileChannel;
-import java.util.Collections;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import dareka.common.Logger;
-
-/**
- *
- * Abstraction of cache handling.
- *
- * Naming specification:
- *
- * A cache is identified by cacheId which consists of letters without '_'
- * (except nltmp).
- *
- * A cache may have a description which consists of letters being available for
- * filename.
- *
- * Mapping of cache names and filename: cacheId + ('_' + description)? + postfix
- *
- */
-// TODO Too fragile! Have to be managed the state...
-public class Cache {
-    private static final String NLTMP = "nltmp";
-    private static final String NLTMP_ = "nltmp_";
-    private static final String TMP = ".tmp";
-    private static final Pattern CACHE_FILE_PATTERN =
-            Pattern.compile("^([^_]+?)(?:_.*)?\\.(?!tmp$)[^.]+$");
-    private static final Pattern NUMBER_CHARACTER_REFERENCE_PATTERN =
-            Pattern.compile("&#(\\d+);");
-
-    private static File cacheDir = new File("cache");
-    private static ConcurrentHashMap<String, File> id2File =
-            new ConcurrentHashMap<String, File>();
-    // [nl] ꎞt@CIDE_E[hID
-    // TODO id2Tmp, id2DL̕ύXƃt@C͕sANZXΉv
-    private static ConcurrentHashMap<String, File> id2Tmp =
-            new ConcurrentHashMap<String, File>();
-    private static ConcurrentHashMap<String, Integer> id2DL =
-            new ConcurrentHashMap<String, Integer>();
-
-    private String cacheId;
-    private String postfix;
-    private File cacheFile;
-    private File tmpFile;
-
-    public static void init() {
-        cacheDir.mkdir();
-        id2File.clear();
-        id2Tmp.clear();
-
-        searchCachesOnADirectory(cacheDir, 1);
-    }
-
-    private static void searchCachesOnADirectory(File dir, int depth) {
-        File[] cacheFiles = dir.listFiles();
-        if (cacheFiles == null) {
-            return;
-        }
-
-        NicoIdInfoCache idInfoCache = NicoIdInfoCache.getInstance();
-        // ^([a-z][a-z])([0-9]+)(?:low)?_(.+)\.(?:mp4|swf|slv)$
-        Pattern idInfoPatternWithTitle = Pattern.compile("^([a-z][a-z])([0-9]+)(?:low)?_(.+)\\.(?:mp4|swf|slv)$");
-        // ^([a-z][a-z])([0-9]+)(?:low)?\.(?:mp4|swf|slv)$
-        Pattern idInfoPatternWithoutTitle = Pattern.compile("^([a-z][a-z])([0-9]+)(?:low)?\\.(?:mp4|swf|slv)$");
-
-        for (File file : cacheFiles) {
-            if (file.isDirectory()) {
-                searchCachesOnADirectory(file, depth + 1);
-            } else if (file.isFile()) {
-                String id = getIdFromFilename(file.getName());
-                if (!id.equals("")) {
-                    if (depth == 1 && id.equals(NLTMP)) {
-                        id = getIdFromFilename(file.getName().substring(6));
-                        id2Tmp.put(id, file);
-
-                        Logger.debug("partial cache found: " + id + " => "
-                                + file.getPath());
-                    } else {
-                        id2File.put(id, file);
-
-                        Logger.debug("cache found: " + id + " => "
-                                + file.getPath());
-                    }
-                }
-
-                Matcher m = idInfoPatternWithTitle.matcher(file.getName());
-                if (m.find()) {
-                    String idInfoType = m.group(1);
-                    String idInfoId = m.group(2);
-                    String idInfoTitle = m.group(3);
-                    idInfoCache.put(idInfoType, idInfoId, idInfoTitle);
-                }
-                else {
-                    m = idInfoPatternWithoutTitle.matcher(file.getName());
-                    if (m.find()) {
-                        String idInfoType = m.group(1);
-                        String idInfoId = m.group(2);
-                        idInfoCache.putOnlyTypeAndId(idInfoType, idInfoId);
-                    }
-                }
-            }
-        }
-    }
-
-    static String getIdFromFilename(String filename) {
-        Matcher m = CACHE_FILE_PATTERN.matcher(filename);
-        if (m.find()) {
-            return m.group(1);
-        } else {
-            return "";
-        }
-    }
-
-    public static void cleanup() {
-        File[] tmpFiles = cacheDir.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                if (name.endsWith(TMP)) {
-                    return true;
-                }
-                return false;
-            }
-        });
-
-        if (tmpFiles == null) {
-            return;
-        }
-
-        for (File file : tmpFiles) {
-            // directory is also target, but removed only if it's empty.
-            file.delete();
-        }
-    }
-
-    public static long size() {
-        long sum = 0;
-
-        for (File file : id2File.values()) {
-            sum += file.length();
-        }
-
-        return sum;
-    }
-
-    public static Map<String, File> getId2File() {
-        return Collections.unmodifiableMap(id2File);
-    }
-
-    /**
-     * [nl] _E[htOQbg
-     * @param id
-     * @return _E[hȂtrue
-     */
-    public static boolean getDLFlag(String id) {
-        Integer size = id2DL.get(id);
-        // containsKey()Ăget()
-        // rő̃XbhɊ荞܂\B
-        // ConcurrentHashMap͒lnullȂ̂
-        // get()̌null`FbN邱Ƃ
-        // o^Ă邩ǂmFB
-        // ꂾł͕s\
-
-        if (size != null && size.intValue() > 0) {
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    /**
-     * [nl] _E[htOZbg
-     * @param id
-     * @param size
-     */
-    public static void setDLFlag(String id, int size) {
-        if (size > 0) {
-            id2DL.put(id, Integer.valueOf(size));
-        } else {
-            id2DL.remove(id);
-        }
-    }
-
-    public Cache(String cacheId, String postfix) {
-        this.cacheId = cacheId;
-        this.postfix = postfix;
-
-        cacheFile = id2File.get(cacheId);
-        if (cacheFile == null) {
-            cacheFile = new File(cacheDir, cacheId + postfix);
-        }
-    }
-
-    public Cache(String cacheId, String postfix, String desc) {
-        this.cacheId = cacheId;
-        this.postfix = postfix;
-
-        cacheFile = id2File.get(cacheId);
-        if (cacheFile == null) {
-            cacheFile = getDescribedCacheFile(desc);
-        }
-    }
-
-    protected File getDescribedCacheFile(String desc) {
-        StringBuffer decodedDesc = new StringBuffer(desc.length());
-
-        Matcher m = NUMBER_CHARACTER_REFERENCE_PATTERN.matcher(desc);
-
-        while (m.find()) {
-            m.appendReplacement(decodedDesc,
-                    Character.toString((char) Integer.parseInt(m.group(1))));
-        }
-        m.appendTail(decodedDesc);
-
-        String sanitizedDesc = getSanitizedDescription(decodedDesc.toString());
-
-        return new File(cacheDir, cacheId + '_' + sanitizedDesc + postfix);
-    }
-
-    static String getSanitizedDescription(String decodedDesc) {
-        String fileNameCharset = System.getProperty("fileNameCharset");
-
-        String narrowedDesc = narrowCharset(decodedDesc, fileNameCharset);
-
-        StringBuilder sanitizedDesc = new StringBuilder(narrowedDesc.length());
-
-        for (int i = 0; i < narrowedDesc.length(); i++) {
-            char c = narrowedDesc.charAt(i);
-            if (c == '\\' || c == '/' || c == ':' || c == ',' || c == ';'
-                    || c == '*' || c == '?' || c == '"' || c == '<' || c == '>'
-                    || c == '|') {
-                sanitizedDesc.append('-');
-            } else {
-                sanitizedDesc.append(c);
-            }
-        }
-        return sanitizedDesc.toString();
-    }
-
-    static String narrowCharset(String str, String charsetName) {
-        String narrowedDesc = str;
-        if (!charsetName.equals("")) {
-            try {
-                narrowedDesc =
-                        new String(str.getBytes(charsetName), charsetName);
-                // characters which are not supported by the charset
-                // become '?'
-            } catch (UnsupportedEncodingException e) {
-                Logger.warning(e.toString());
-            }
-
-        }
-        return narrowedDesc;
-    }
-
-    public String getId() {
-        return cacheId;
-    }
-
-    public File getCacheFile() {
-        return cacheFile;
-    }
-
-    public String getCacheFileName() {
-        return cacheFile.getName();
-    }
-
-    public String getURLString() {
-        return cacheFile.toURI().toString();
-    }
-
-    public void setDescribe(String desc) {
-        cacheFile = getDescribedCacheFile(desc);
-    }
-
-    public void setTmpDescribe(String title) throws IOException {
-        File newName =
-                new File(cacheDir, NLTMP_ + getId() + "_"
-                        + getSanitizedDescription(title) + postfix);
-      if (renameByCopy(getCacheTmpFile(), newName)) {
-            id2Tmp.put(getId(), newName);
-        }
-    }
-
-	private boolean renameByCopy(File oldFile, File newFile) {
-		boolean result;
-		boolean copySuccess = copyFile(oldFile, newFile);
-		if (copySuccess) {
-			result =  oldFile.delete();
-		}
-		else {
-			result = false;
-		}
-
-		if (result == false) {
-			Logger.warning("rename failed: " + oldFile.getAbsolutePath() + " -> " + newFile.getAbsolutePath());
-		}
-
-		return result;
-	}
-
-	private boolean copyFile(File srcFile, File dstFile) {
-		try {
-			if(!dstFile.exists()) {
-				dstFile.createNewFile();
-			}
-
-			FileChannel source = null;
-			FileChannel destination = null;
-
-			try {
-				source = new FileInputStream(srcFile).getChannel();
-				destination = new FileOutputStream(dstFile).getChannel();
-				destination.transferFrom(source, 0, source.size());
-				return true;
-			}
-			finally {
-				if(source != null) {
-					source.close();
-				}
-				if(destination != null) {
-					destination.close();
-				}
-			}
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-			return true;
-		}
-	}
-
-	public long length() {
-        return cacheFile.length();
-    }
-
-    public long tmpLength() throws IOException {
-        return getCacheTmpFile().length();
-    }
-
-    public boolean exists() {
-        return cacheFile.exists();
-    }
-
-    public void touch() {
-        cacheFile.setLastModified(System.currentTimeMillis());
-    }
-
-    public InputStream getInputStream() throws IOException {
-        cacheFile.setLastModified(System.currentTimeMillis());
-        return new FileInputStream(cacheFile);
-    }
-
-    /**
-     * ꎞt@C̓̓Xg[𓾂
-     * @return ꎞt@C̓̓Xg[
-     * @throws IOException
-     */
-    public InputStream getTmpInputStream() throws IOException {
-        File cacheTmpFile = getCacheTmpFile();
-        return new FileInputStream(cacheTmpFile);
-    }
-
-    /**
-     * ꎞt@C̏o̓Xg[𓾂
-     * @param append ǋLꍇtrue
-     * @return ꎞt@C̏o̓Xg[
-     * @throws IOException
-     */
-    public OutputStream getTmpOutputStream(boolean append) throws IOException {
-        File cacheTmpFile = getCacheTmpFile();
-        return new FileOutputStream(cacheTmpFile, append);
-    }
-
-    public void store() throws IOException {
-        File cacheTmpFile = getCacheTmpFile();
-
-        // TODO the knowledge of "low" depends on NicoNico, so it should
-        // not exist this cache abstraction layer.
-
-        File parentDir = cacheDir;
-        if (!cacheId.endsWith("low")) {
-            String lowId = cacheId + "low";
-            File lowFile = id2File.get(lowId);
-            if (lowFile != null) {
-                parentDir = lowFile.getParentFile();
-            }
-        }
-
-        cacheFile = new File(parentDir, cacheFile.getName());
-
-      if (renameByCopy(cacheTmpFile, cacheFile)) {
-            id2File.put(cacheId, cacheFile);
-        } else {
-            cacheTmpFile.delete();
-        }
-
-        id2Tmp.remove(cacheId);
-    }
-
-    public void deleteTmp() throws IOException {
-        File cacheTmpFile = getCacheTmpFile();
-        cacheTmpFile.delete();
-    }
-
-    // [nl] ꎞt@CύX
-    // tmpFiletest and setatomicɂ邽߂synchronizedKvB
-    protected synchronized File getCacheTmpFile() throws IOException {
-        if (tmpFile == null) {
-            //tmpFile = File.createTempFile(cacheId + ".flv-", TMP, cacheDir);
-
-            File knownTmpFile = id2Tmp.get(getId());
-            if (knownTmpFile == null) {
-                tmpFile = new File(cacheDir, NLTMP_ + cacheFile.getName());
-            } else {
-                tmpFile = knownTmpFile;
-            }
-
-            if (!tmpFile.exists()) {
-                tmpFile.createNewFile();
-            }
-        }
-        id2Tmp.put(getId(), tmpFile);
-        return tmpFile;
-    }
-}
+package dareka.processor.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+
+/**
+ *
+ * Abstraction of cache handling.
+ *
+ * Naming specification:
+ *
+ * A cache is identified by cacheId which consists of letters without '_'
+ * (except nltmp).
+ *
+ * A cache may have a description which consists of letters being available for
+ * filename.
+ *
+ * Mapping of cache names and filename: cacheId + ('_' + description)? + postfix
+ *
+ * The state of each cacheId is managed by a {@link CacheEntry}. Threads
+ * handling the same cacheId share the entry, and file operations for it are
+ * serialized by a lock selected by the cacheId.
+ *
+ */
+public class Cache {
+    private static final String NLTMP = "nltmp";
+    private static final String NLTMP_ = "nltmp_";
+    private static final String TMP = ".tmp";
+    /**
+     * Postfix of the file which has the valid length of a preallocated tmp
+     * file.
+     */
+    private static final String VALID_LENGTH = ".valid";
+    // names starting with '.' are never caches.
+    private static final Pattern CACHE_FILE_PATTERN =
+            Pattern.compile("^([^_.][^_]*?)(?:_.*)?\\.(?!tmp$)[^.]+$");
+    /** postfixes of the cache files, see {@link NicoCachingProcessor}. */
+    private static final Pattern CACHE_POSTFIX_PATTERN =
+            Pattern.compile("\\.(?:flv|mp4|swf|unknown)$");
+    private static final Pattern NUMBER_CHARACTER_REFERENCE_PATTERN =
+            Pattern.compile("&#(\\d+);");
+    // ^([a-z][a-z])([0-9]+)(?:low)?_(.+)\.(?:mp4|swf|slv)$
+    private static final Pattern ID_INFO_PATTERN_WITH_TITLE =
+            Pattern.compile("^([a-z][a-z])([0-9]+)(?:low)?_(.+)\\.(?:mp4|swf|slv)$");
+    // ^([a-z][a-z])([0-9]+)(?:low)?\.(?:mp4|swf|slv)$
+    private static final Pattern ID_INFO_PATTERN_WITHOUT_TITLE =
+            Pattern.compile("^([a-z][a-z])([0-9]+)(?:low)?\\.(?:mp4|swf|slv)$");
+    /**
+     * Name of the index file in the cache directory. The leading '.' keeps
+     * it from being treated as a cache.
+     */
+    private static final String INDEX_FILE = ".index";
+    /**
+     * Name of the log file of {@link NicoIdInfoCache} in the cache
+     * directory.
+     */
+    private static final String TITLE_FILE = ".titles";
+    /**
+     * Name of the directory of {@link CacheMetadata} files in the cache
+     * directory. They are kept out of the index, so that the metadata
+     * survives rebuilding the index.
+     */
+    private static final String METADATA_DIR = ".metadata";
+    private static final String METADATA = ".meta";
+
+    private static File cacheDir = new File("cache");
+    /**
+     * Canonical directory of the saved comments, which is not scanned, or
+     * null if it is not in the cache directories.
+     */
+    private static volatile File commentDir;
+    /** canonical directory of the metadata files. */
+    private static volatile File metadataDir;
+    private static ConcurrentHashMap<String, CacheEntry> entries =
+            new ConcurrentHashMap<String, CacheEntry>();
+    private static final Object[] LOCKS = new Object[64];
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+    private static CacheIndex index = new CacheIndex(cacheDir, null);
+    private static volatile CacheScanner scanner;
+    private static CacheEvictor evictor = new CacheEvictor();
+    private static CacheVolumes volumes = new CacheVolumes(cacheDir, null);
+    private static CacheMigrator migrator = new CacheMigrator();
+    private static CacheMover mover = new CacheMover();
+    private static CacheStats stats = new CacheStats();
+    private static CacheReconciler reconciler = new CacheReconciler();
+    private static Set<String> touchedIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static CacheAccessWriter accessWriter = new CacheAccessWriter();
+    /** copies which are being made by relocate(). */
+    private static final Set<File> copying = new HashSet<File>();
+    /** file names to rename completed caches to, by the id. */
+    private static ConcurrentHashMap<String, String> pendingNames =
+            new ConcurrentHashMap<String, String>();
+
+    private String cacheId;
+    private volatile CacheEntry entry;
+    private String postfix;
+    private File cacheFile;
+    private File tmpFile;
+    private CacheMetadata metadata;
+
+    public static void init() {
+        cacheDir.mkdir();
+        entries.clear();
+        stats.clear();
+        touchedIds.clear();
+        pendingNames.clear();
+
+        volumes = new CacheVolumes(cacheDir, System.getProperty("cacheVolumes"));
+        for (CacheVolume v : volumes.getVolumes()) {
+            v.getDir().mkdirs();
+            v.clearUsed();
+        }
+        commentDir = getCommentDirectory();
+        metadataDir = getCanonicalFile(new File(cacheDir, METADATA_DIR));
+
+        File indexFile = null;
+        if (Boolean.getBoolean("cacheIndex")) {
+            indexFile = new File(cacheDir, INDEX_FILE);
+        }
+        index = new CacheIndex(cacheDir, indexFile);
+
+        File titleFile = null;
+        if (Boolean.getBoolean("titleStore")) {
+            titleFile = new File(cacheDir, TITLE_FILE);
+        }
+        boolean loaded = index.load();
+        // the title log is compacted by a rename in the cache directory.
+        // open it after the directory is checked, and before the index is
+        // compacted, which records the directory again.
+        NicoIdInfoCache.getInstance().open(titleFile);
+
+        if (loaded) {
+            restoreFromIndex();
+            index.compact();
+            evictor.reset(index.getRecords(false));
+        } else {
+            startScanning();
+        }
+
+        evictor.start();
+        reconciler.start();
+        accessWriter.start();
+        if (isSharded()) {
+            migrator.start();
+        }
+        if (volumes.isMultiple()) {
+            mover.start();
+        }
+    }
+
+    /**
+     * Close the cache index. Call this after all transfers are finished.
+     */
+    public static void shutdown() {
+        migrator.stop();
+        mover.stop();
+        reconciler.stop();
+        accessWriter.stop();
+        evictor.stop();
+        flushAccessTimes();
+        // before the index is compacted, for the same reason as init().
+        NicoIdInfoCache.getInstance().close();
+
+        CacheScanner s = scanner;
+        if (s != null) {
+            // an incomplete index must not be written.
+            s.cancel();
+            index.close();
+            return;
+        }
+
+        index.compact();
+        index.close();
+    }
+
+    /**
+     * Whether the cache directory is being scanned in background.
+     * While scanning, a cache which is not found yet may exist.
+     *
+     * @return true if scanning.
+     */
+    public static boolean isIndexing() {
+        return scanner != null;
+    }
+
+    /**
+     * @return canonical directory of the saved comments, or null if it is a
+     * volume itself or contains a volume, because it is not separated from
+     * the caches then.
+     */
+    private static File getCommentDirectory() {
+        File dir = getCanonicalFile(SaveCommentListener.getOutputDirectory());
+        for (CacheVolume v : volumes.getVolumes()) {
+            if (getCanonicalFile(v.getDir()).toPath().startsWith(dir.toPath())) {
+                return null;
+            }
+        }
+        return dir;
+    }
+
+    static File getCanonicalFile(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Whether the directory holds files other than caches, such as the
+     * saved comments. Such directories are neither scanned nor checked for
+     * modifications.
+     *
+     * @param dir directory.
+     * @return true if excluded.
+     */
+    static boolean isExcludedDirectory(File dir) {
+        Path path = getCanonicalFile(dir).toPath();
+        File excluded = commentDir;
+        if (excluded != null && path.startsWith(excluded.toPath())) {
+            return true;
+        }
+        excluded = metadataDir;
+        return excluded != null && path.startsWith(excluded.toPath());
+    }
+
+    private static File getMetadataFile(String id) {
+        return new File(new File(cacheDir, METADATA_DIR), id + METADATA);
+    }
+
+    /**
+     * Save the metadata of the completed cache, or delete the old one if
+     * it is null. Call this under the lock of the id.
+     */
+    private static void saveMetadata(String id, CacheMetadata metadata) {
+        File file = getMetadataFile(id);
+        if (metadata == null) {
+            file.delete();
+            return;
+        }
+
+        try {
+            metadata.save(file);
+        } catch (IOException e) {
+            Logger.warning("failed to save metadata: " + id + ": "
+                    + e.toString());
+        }
+    }
+
+    /**
+     * Delete the metadata files of the ids which have no completed cache.
+     * Call this after the scanning.
+     */
+    private static void pruneMetadata() {
+        String[] names = new File(cacheDir, METADATA_DIR).list();
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            if (!name.endsWith(METADATA)) {
+                continue;
+            }
+            String id = name.substring(0, name.length() - METADATA.length());
+            synchronized (getLock(id)) {
+                CacheEntry e = entries.get(id);
+                if (e == null || e.getFile() == null) {
+                    getMetadataFile(id).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name name of a file in the cache directories.
+     * @return true if the file may be a cache.
+     */
+    static boolean isCacheFileName(String name) {
+        return CACHE_POSTFIX_PATTERN.matcher(name).find()
+                && CACHE_FILE_PATTERN.matcher(name).find();
+    }
+
+    private static void restoreFromIndex() {
+        NicoIdInfoCache idInfoCache = NicoIdInfoCache.getInstance();
+
+        List<CacheIndex.Record> completes = index.getRecords(false);
+        List<CacheIndex.Record> partials = index.getRecords(true);
+        for (CacheIndex.Record r : completes) {
+            restoreEntry(r.getId(), index.toFile(r.getPath()), false,
+                    r.getSize(), r.getLastModified(), r.getMetadata());
+            recordIdInfo(idInfoCache, r);
+        }
+        for (CacheIndex.Record r : partials) {
+            File file = index.toFile(r.getPath());
+            long size = restoreValidLength(file, r.getSize());
+            restoreEntry(r.getId(), file, true, size, r.getLastModified(),
+                    null);
+        }
+
+        Logger.debug("cache index loaded: " + completes.size() + " caches, "
+                + partials.size() + " partial caches");
+    }
+
+    private static void startScanning() {
+        final CacheScanner s = new CacheScanner(volumes.getDirectories(),
+                new ScanVisitor());
+        scanner = s;
+
+        Thread t = new Thread("CacheScanner") {
+            @Override
+            public void run() {
+                try {
+                    if (s.scan()) {
+                        pruneMetadata();
+                        index.compact();
+                        evictor.reset(index.getRecords(false));
+                        Logger.info("cache indexed: %,d files in %,d directories",
+                                Long.valueOf(s.getFileCount()),
+                                Long.valueOf(s.getDirectoryCount()));
+                        Logger.info("total cache size=%,dbytes (%,d files)",
+                                Long.valueOf(size()), Long.valueOf(count()));
+                    }
+                } finally {
+                    scanner = null;
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Drop the preallocated area of a tmp file which was not written because
+     * of a crash. The valid length is written to a file beside the tmp file
+     * before preallocating, and the file is deleted after the tmp file is
+     * truncated at closing. So if the file exists, the length of the tmp
+     * file is not trusted.
+     *
+     * @param file tmp file.
+     * @param length length of the tmp file known by the caller.
+     * @return length of the valid data.
+     */
+    private static long restoreValidLength(File file, long length) {
+        File validLengthFile = getValidLengthFile(file);
+        if (!validLengthFile.exists()) {
+            return length;
+        }
+
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(validLengthFile));
+            validLength = Math.min(in.readLong(), length);
+        } catch (IOException e) {
+            // written partially, so nothing can be trusted.
+            Logger.debug(e);
+        } finally {
+            CloseUtil.close(in);
+        }
+
+        if (truncatePreallocated(file, validLength)) {
+            validLengthFile.delete();
+        }
+        return validLength;
+    }
+
+    private static File getValidLengthFile(File tmpFile) {
+        return new File(tmpFile.getParentFile(), tmpFile.getName()
+                + VALID_LENGTH);
+    }
+
+    /**
+     * Record the valid length of the tmp file before preallocating it.
+     */
+    private static void writeValidLength(File tmpFile, long validLength)
+            throws IOException {
+        FileOutputStream out =
+                new FileOutputStream(getValidLengthFile(tmpFile));
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(validLength);
+            data.flush();
+            // it must be on the disk before the file becomes longer.
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return true if the file is not longer than the valid length.
+     */
+    private static boolean truncatePreallocated(File file, long validLength) {
+        if (file.length() <= validLength) {
+            return true;
+        }
+
+        Logger.debug("truncating partial cache: " + file.getPath() + " to "
+                + validLength);
+        try {
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try { // ensure f.close()
+                f.setLength(validLength);
+            } finally {
+                f.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.warning("failed to truncate: " + file.getPath() + ": "
+                    + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Register a file found at startup.
+     */
+    private static void restoreEntry(String id, File file, boolean partial,
+            long size, long lastModified, CacheMetadata metadata) {
+        synchronized (getLock(id)) {
+            // under the lock, so that the entry is not removed meanwhile.
+            CacheEntry e = getEntry(id);
+            if (partial) {
+                e.setTmpFile(file);
+                // a complete one is preferred.
+                e.transit(CacheEntry.State.ABSENT, CacheEntry.State.PARTIAL);
+            } else {
+                if (e.getState() == CacheEntry.State.COMPLETE) {
+                    // another file of the same id.
+                    uncount(e);
+                }
+                e.setFile(file);
+                e.setMetadata(metadata);
+                e.setLastAccess(lastModified);
+                e.setState(CacheEntry.State.COMPLETE);
+                count(e, file, size);
+            }
+        }
+    }
+
+    /**
+     * Add the cache file of the entry to {@link CacheStats}.
+     * Call this under the lock of the id.
+     */
+    private static void count(CacheEntry e, File file, long size) {
+        e.setSize(size);
+        stats.add(e.getId(), index.toPath(file.getParentFile()), size);
+        addUsed(file, size);
+    }
+
+    /**
+     * Remove the cache file of the entry from {@link CacheStats}.
+     * Call this under the lock of the id before changing the file.
+     */
+    private static void uncount(CacheEntry e) {
+        File file = e.getFile();
+        if (file != null) {
+            stats.remove(e.getId(), index.toPath(file.getParentFile()),
+                    e.getSize());
+            addUsed(file, -e.getSize());
+        }
+    }
+
+    private static void addUsed(File file, long delta) {
+        CacheVolume v = volumes.getVolume(file);
+        if (v != null) {
+            v.addUsed(delta);
+        }
+    }
+
+    private static CacheEntry getEntry(String id) {
+        while (true) {
+            CacheEntry e = entries.get(id);
+            if (e == null) {
+                CacheEntry newEntry = new CacheEntry(id);
+                e = entries.putIfAbsent(id, newEntry);
+                if (e == null) {
+                    return newEntry;
+                }
+            }
+            if (e.getState() != CacheEntry.State.REMOVED) {
+                return e;
+            }
+
+            // being removed by another thread.
+            entries.remove(id, e);
+        }
+    }
+
+    /**
+     * Forget the entry if it holds nothing, so that the entries of missed
+     * or evicted ids do not stay in memory. Users which still have the
+     * entry see REMOVED and get the new one.
+     * Call this under the lock of the id.
+     */
+    private static void removeIfUnused(CacheEntry e) {
+        if (e.getTmpFile() != null || pendingNames.containsKey(e.getId())) {
+            return;
+        }
+        if (!e.transit(CacheEntry.State.ABSENT, CacheEntry.State.REMOVED)) {
+            return;
+        }
+
+        // pin() increments pins before checking the state, so either
+        // pin() sees REMOVED or this sees the pin.
+        if (e.getPins() > 0) {
+            e.transit(CacheEntry.State.REMOVED, CacheEntry.State.ABSENT);
+            return;
+        }
+
+        entries.remove(e.getId(), e);
+    }
+
+    /**
+     * Follow the new entry of the id if the entry of this object has been
+     * removed.
+     */
+    private void refreshEntry() {
+        CacheEntry e = entry;
+        if (e.getState() == CacheEntry.State.REMOVED) {
+            entry = getEntry(cacheId);
+        }
+    }
+
+    /**
+     * Get the lock for file operations of the id. Locks are shared by
+     * several ids, so do not take another lock while holding it.
+     */
+    private static Object getLock(String id) {
+        return LOCKS[(id.hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    private static class ScanVisitor implements CacheScanner.Visitor {
+        private NicoIdInfoCache idInfoCache = NicoIdInfoCache.getInstance();
+        /** names of the metadata files, to avoid opening missing files. */
+        private Set<String> metadataNames = new HashSet<String>();
+
+        ScanVisitor() {
+            String[] names = new File(cacheDir, METADATA_DIR).list();
+            if (names != null) {
+                metadataNames.addAll(Arrays.asList(names));
+            }
+        }
+
+        public boolean visitDirectory(File dir) {
+            if (isExcludedDirectory(dir)) {
+                return false;
+            }
+
+            // take the time before listing, so that changes during the
+            // listing are detected at the next startup.
+            index.updateDirectory(dir);
+            return true;
+        }
+
+        public void visitFile(File file, BasicFileAttributes attrs, int depth) {
+            // other files must not be counted nor evicted.
+            if (!isCacheFileName(file.getName())) {
+                return;
+            }
+            String id = getIdFromFilename(file.getName());
+
+            CacheIndex.Record r;
+            if (depth == 1 && id.equals(NLTMP)) {
+                id = getIdFromFilename(file.getName().substring(6));
+                // the file may be preallocated.
+                long size = restoreValidLength(file, attrs.size());
+                restoreEntry(id, file, true, size,
+                        attrs.lastModifiedTime().toMillis(), null);
+                r = createRecord(id, file, true, size,
+                        attrs.lastModifiedTime().toMillis());
+
+                Logger.debug("partial cache found: " + id + " => "
+                        + file.getPath());
+            } else {
+                CacheMetadata metadata = null;
+                if (metadataNames.contains(id + METADATA)) {
+                    metadata = CacheMetadata.load(getMetadataFile(id));
+                }
+                restoreEntry(id, file, false, attrs.size(),
+                        attrs.lastModifiedTime().toMillis(), metadata);
+                r = createRecord(id, file, false, attrs.size(),
+                        attrs.lastModifiedTime().toMillis());
+
+                Logger.debug("cache found: " + id + " => " + file.getPath());
+            }
+
+            index.put(r);
+            recordIdInfo(idInfoCache, r);
+        }
+    }
+
+    /**
+     * Whether the caches are placed in two levels of subdirectories.
+     * The property cacheLayout is "flat" or "sharded".
+     *
+     * @return true if sharded.
+     */
+    static boolean isSharded() {
+        return "sharded".equals(System.getProperty("cacheLayout"));
+    }
+
+    /**
+     * Get the directory to place the cache. In the sharded layout, the
+     * directories are keyed by the last 4 digits of the number in the id,
+     * for example cache/45/23/sm12345.mp4, so no directory grows too large.
+     *
+     * @param cacheId id of the cache.
+     * @return directory for the cache.
+     */
+    static File getShardDirectory(String cacheId) {
+        return getShardDirectory(cacheDir, cacheId);
+    }
+
+    /**
+     * @param root root directory of a volume.
+     * @param cacheId id of the cache.
+     * @return directory for the cache in the volume.
+     */
+    static File getShardDirectory(File root, String cacheId) {
+        if (!isSharded()) {
+            return root;
+        }
+
+        int end = cacheId.length();
+        while (end > 0 && !Character.isDigit(cacheId.charAt(end - 1))) {
+            end--;
+        }
+        int begin = end;
+        while (begin > 0 && Character.isDigit(cacheId.charAt(begin - 1))) {
+            begin--;
+        }
+        if (begin == end) {
+            return root;
+        }
+
+        String digits = "000" + cacheId.substring(begin, end);
+        int len = digits.length();
+        File level1 = new File(root, digits.substring(len - 2, len));
+        return new File(level1, digits.substring(len - 4, len - 2));
+    }
+
+    private static void makeDirectory(File dir) throws IOException {
+        if (dir.isDirectory()) {
+            return;
+        }
+
+        File parent = dir.getParentFile();
+        if (parent != null && !parent.equals(cacheDir)) {
+            makeDirectory(parent);
+        }
+
+        if (!dir.mkdir() && !dir.isDirectory()) {
+            throw new IOException("failed to make directory: " + dir.getPath());
+        }
+        if (parent != null) {
+            index.updateDirectory(parent);
+        }
+    }
+
+    /**
+     * Move a cache placed directly under a volume directory to its shard.
+     * Called by {@link CacheMigrator}.
+     *
+     * @param id id of the cache.
+     * @return true if moved.
+     */
+    static boolean migrate(String id) {
+        CacheEntry e = entries.get(id);
+        File file = e == null ? null : e.getFile();
+        if (file == null) {
+            return false;
+        }
+
+        CacheVolume v = volumes.getVolume(file);
+        if (v == null || !v.getDir().equals(file.getParentFile())) {
+            return false;
+        }
+        File dir = getShardDirectory(v.getDir(), id);
+        if (dir.equals(v.getDir())) {
+            return false;
+        }
+
+        return relocate(e, dir);
+    }
+
+    /**
+     * Move a completed cache to another volume. Called by
+     * {@link CacheMover}.
+     *
+     * @param id id of the cache.
+     * @param target volume to move to.
+     * @return true if moved.
+     */
+    static boolean moveTo(String id, CacheVolume target) {
+        CacheEntry e = entries.get(id);
+        File file = e == null ? null : e.getFile();
+        if (file == null || target.contains(file)) {
+            return false;
+        }
+
+        return relocate(e, getShardDirectory(target.getDir(), id));
+    }
+
+    /**
+     * Move the cache file of the entry into the directory. The lookup of
+     * the id is not affected because only the file of the entry changes.
+     *
+     * <p>
+     * Moving to another volume copies the file, which may take long, so
+     * the copy is made out of the lock and committed under the lock only if
+     * the entry still has the same file and nobody uses it.
+     */
+    private static boolean relocate(CacheEntry e, File dir) {
+        String id = e.getId();
+        File file = e.getFile();
+        if (file == null) {
+            return false;
+        }
+
+        File newFile = new File(dir, file.getName());
+        File copy = null;
+        // the name of the copy, which is protected from deleteStaleCopies().
+        File copyName = null;
+        try {
+            if (volumes.getVolume(file) != volumes.getVolume(dir)) {
+                makeDirectory(dir);
+                copy = new File(dir, file.getName() + TMP);
+                copyName = copy;
+                synchronized (copying) {
+                    copying.add(copyName);
+                }
+                Files.copy(file.toPath(), copy.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.COPY_ATTRIBUTES);
+            }
+
+            synchronized (getLock(id)) {
+                if (e.getFile() != file || !lockForEviction(e)) {
+                    return false;
+                }
+
+                try {
+                    makeDirectory(dir);
+                    if (copy != null) {
+                        moveFile(copy, newFile);
+                        copy = null;
+                        if (!file.delete()) {
+                            Logger.warning("failed to delete: " + file.getPath());
+                        }
+                    } else {
+                        moveFile(file, newFile);
+                    }
+
+                    uncount(e);
+                    e.setFile(newFile);
+                    count(e, newFile, e.getSize());
+
+                    CacheIndex.Record old = index.getRecord(id);
+                    index.put(createRecord(id, newFile, false, newFile.length(),
+                            old == null ? newFile.lastModified() : old.getLastModified()));
+                    index.updateDirectory(file.getParentFile());
+                } finally {
+                    e.transit(CacheEntry.State.EVICTING, CacheEntry.State.COMPLETE);
+                }
+            }
+
+            Logger.debug("cache moved: " + file.getPath() + " -> "
+                    + newFile.getPath());
+            return true;
+        } catch (IOException ex) {
+            Logger.warning("failed to move cache: " + id + ": " + ex.toString());
+            return false;
+        } finally {
+            if (copy != null) {
+                copy.delete();
+            }
+            if (copyName != null) {
+                synchronized (copying) {
+                    copying.remove(copyName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the copies left by relocate() in the shard directories, e.g.
+     * because the proxy was stopped while copying. They are never found by
+     * the scan because they are not caches. Called by {@link CacheMigrator}.
+     *
+     * @return the number of the deleted files.
+     */
+    static int deleteStaleCopies() {
+        int count = 0;
+        for (File root : volumes.getDirectories()) {
+            File[] level1 = root.listFiles();
+            if (level1 == null) {
+                continue;
+            }
+            for (File dir1 : level1) {
+                File[] level2 = isShardName(dir1) ? dir1.listFiles() : null;
+                if (level2 == null) {
+                    continue;
+                }
+                for (File dir2 : level2) {
+                    File[] files = isShardName(dir2) ? dir2.listFiles() : null;
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File file : files) {
+                        if (file.getName().endsWith(TMP)
+                                && deleteStaleCopy(file)) {
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean isShardName(File dir) {
+        String name = dir.getName();
+        return name.length() == 2 && Character.isDigit(name.charAt(0))
+                && Character.isDigit(name.charAt(1)) && dir.isDirectory();
+    }
+
+    private static boolean deleteStaleCopy(File file) {
+        synchronized (copying) {
+            if (copying.contains(file) || !file.delete()) {
+                return false;
+            }
+        }
+        Logger.debug("stale copy deleted: " + file.getPath());
+        index.updateDirectory(file.getParentFile());
+        return true;
+    }
+
+    /**
+     * Move the entry from COMPLETE to EVICTING if nobody uses it.
+     * Call this under the lock of the id.
+     *
+     * @return true if the caller owns the file until it changes the state.
+     */
+    private static boolean lockForEviction(CacheEntry e) {
+        if (!e.transit(CacheEntry.State.COMPLETE, CacheEntry.State.EVICTING)) {
+            return false;
+        }
+
+        // pin() increments pins before checking the state, so either
+        // pin() sees EVICTING or this sees the pin.
+        if (e.getPins() > 0) {
+            e.transit(CacheEntry.State.EVICTING, CacheEntry.State.COMPLETE);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether the cache can be evicted now. This is just a hint, and
+     * {@link #evict(String)} checks it again.
+     *
+     * @param id id of the cache.
+     * @return true if the cache is completed and nobody uses it.
+     */
+    /**
+     * @param id id of the cache.
+     * @return true if the cache is completed, even if it is being evicted
+     * or moved now.
+     */
+    static boolean isCompleted(String id) {
+        CacheEntry e = entries.get(id);
+        if (e == null) {
+            return false;
+        }
+        CacheEntry.State state = e.getState();
+        return state == CacheEntry.State.COMPLETE
+                || state == CacheEntry.State.EVICTING;
+    }
+
+    static boolean isEvictable(String id) {
+        CacheEntry e = entries.get(id);
+        return e == null
+                || (e.getState() == CacheEntry.State.COMPLETE && e.getPins() == 0);
+    }
+
+    /**
+     * Delete a completed cache. Called by {@link CacheEvictor}.
+     *
+     * @param id id of the cache.
+     * @return true if the cache is deleted.
+     */
+    static boolean evict(String id) {
+        CacheEntry e = entries.get(id);
+        if (e == null || e.getState() == CacheEntry.State.ABSENT
+                || e.getState() == CacheEntry.State.REMOVED) {
+            return true;
+        }
+
+        synchronized (getLock(id)) {
+            if (!lockForEviction(e)) {
+                return false;
+            }
+
+            File file = e.getFile();
+            if (file.exists() && !file.delete()) {
+                Logger.warning("failed to evict: " + file.getPath());
+                e.transit(CacheEntry.State.EVICTING, CacheEntry.State.COMPLETE);
+                return false;
+            }
+
+            index.remove(id, false);
+            uncount(e);
+            e.setFile(null);
+            e.setMetadata(null);
+            getMetadataFile(id).delete();
+            e.transit(CacheEntry.State.EVICTING, CacheEntry.State.ABSENT);
+            removeIfUnused(e);
+            Logger.debug("cache evicted: " + file.getPath());
+            return true;
+        }
+    }
+
+    private static CacheIndex.Record createRecord(String id, File file,
+            boolean partial) {
+        return createRecord(id, file, partial, file.length(),
+                file.lastModified());
+    }
+
+    private static CacheIndex.Record createRecord(String id, File file,
+            boolean partial, long size, long lastModified) {
+        String infoType = null;
+        String infoId = null;
+        String infoTitle = null;
+
+        Matcher m = ID_INFO_PATTERN_WITH_TITLE.matcher(file.getName());
+        if (m.find()) {
+            infoType = m.group(1);
+            infoId = m.group(2);
+            infoTitle = m.group(3);
+        } else {
+            m = ID_INFO_PATTERN_WITHOUT_TITLE.matcher(file.getName());
+            if (m.find()) {
+                infoType = m.group(1);
+                infoId = m.group(2);
+            }
+        }
+
+        CacheMetadata metadata = null;
+        if (!partial) {
+            CacheEntry e = entries.get(id);
+            if (e != null) {
+                metadata = e.getMetadata();
+            }
+        }
+
+        return new CacheIndex.Record(id, partial, index.toPath(file), size,
+                lastModified, infoType, infoId, infoTitle, metadata);
+    }
+
+    private static void recordIdInfo(NicoIdInfoCache idInfoCache,
+            CacheIndex.Record r) {
+        if (r.getInfoType() == null) {
+            return;
+        }
+
+        if (r.getInfoTitle() != null) {
+            idInfoCache.put(r.getInfoType(), r.getInfoId(), r.getInfoTitle());
+        } else {
+            idInfoCache.putOnlyTypeAndId(r.getInfoType(), r.getInfoId());
+        }
+    }
+
+    static String getIdFromFilename(String filename) {
+        Matcher m = CACHE_FILE_PATTERN.matcher(filename);
+        if (m.find()) {
+            return m.group(1);
+        } else {
+            return "";
+        }
+    }
+
+    public static void cleanup() {
+        File[] tmpFiles = cacheDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                if (name.endsWith(TMP)) {
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        if (tmpFiles == null) {
+            return;
+        }
+
+        for (File file : tmpFiles) {
+            // directory is also target, but removed only if it's empty.
+            file.delete();
+        }
+
+        index.updateDirectory(cacheDir);
+    }
+
+    /**
+     * @return total size of the completed caches.
+     */
+    public static long size() {
+        return stats.getTotalSize();
+    }
+
+    /**
+     * @return the number of the completed caches.
+     */
+    public static long count() {
+        return stats.getTotalCount();
+    }
+
+    /**
+     * @return total sizes by the type prefix of the id (sm, nm, so...).
+     */
+    public static Map<String, Long> getSizeByType() {
+        return stats.getSizeByType();
+    }
+
+    /**
+     * @return total sizes by the directory relative to the cache directory.
+     */
+    public static Map<String, Long> getSizeByDirectory() {
+        return stats.getSizeByDirectory();
+    }
+
+    /**
+     * Compare the counted sizes with the files, and correct them. Entries
+     * which hold nothing are also forgotten.
+     * Called periodically by {@link CacheReconciler}.
+     *
+     * @return the number of corrected caches.
+     */
+    static int reconcile() {
+        int corrected = 0;
+        for (CacheEntry e : entries.values()) {
+            if (e.getState() == CacheEntry.State.ABSENT) {
+                // e.g. ids which are requested but not cached.
+                synchronized (getLock(e.getId())) {
+                    removeIfUnused(e);
+                }
+                continue;
+            }
+            if (e.getState() != CacheEntry.State.COMPLETE) {
+                continue;
+            }
+
+            long resized = -1;
+            boolean disappeared = false;
+            synchronized (getLock(e.getId())) {
+                File file = e.getFile();
+                if (e.getState() != CacheEntry.State.COMPLETE || file == null) {
+                    continue;
+                }
+
+                if (!file.exists()) {
+                    if (e.transit(CacheEntry.State.COMPLETE,
+                            CacheEntry.State.ABSENT)) {
+                        Logger.debug("cache disappeared: " + file.getPath());
+                        uncount(e);
+                        index.remove(e.getId(), false);
+                        e.setMetadata(null);
+                        getMetadataFile(e.getId()).delete();
+                        removeIfUnused(e);
+                        disappeared = true;
+                        corrected++;
+                    }
+                } else {
+                    long length = file.length();
+                    if (length != e.getSize()) {
+                        stats.adjust(e.getId(),
+                                index.toPath(file.getParentFile()),
+                                length - e.getSize());
+                        addUsed(file, length - e.getSize());
+                        e.setSize(length);
+                        index.put(createRecord(e.getId(), file, false, length,
+                                file.lastModified()));
+                        resized = length;
+                        corrected++;
+                    }
+                }
+            }
+
+            // out of the lock, see store().
+            if (disappeared) {
+                evictor.remove(e.getId());
+            }
+            if (resized >= 0) {
+                evictor.add(e.getId(), resized);
+            }
+        }
+        return corrected;
+    }
+
+    static CacheVolumes getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * @param v volume.
+     * @return snapshot of the completed caches in the volume.
+     */
+    static List<CacheEntry> getEntries(CacheVolume v) {
+        List<CacheEntry> list = new ArrayList<CacheEntry>();
+        for (CacheEntry e : entries.values()) {
+            File file = e.getFile();
+            if (e.getState() == CacheEntry.State.COMPLETE && file != null
+                    && volumes.getVolume(file) == v) {
+                list.add(e);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Halve the access counts of all caches, so that the counts reflect
+     * recent requests. Called by {@link CacheMover} after each pass.
+     */
+    static void decayAccessCounts() {
+        for (CacheEntry e : entries.values()) {
+            e.decayAccessCount();
+        }
+    }
+
+    /**
+     * @param id id of the cache.
+     * @return the time of the last access kept in memory, or 0 if unknown.
+     */
+    static long getLastAccess(String id) {
+        CacheEntry e = entries.get(id);
+        return e == null ? 0 : e.getLastAccess();
+    }
+
+    /**
+     * Write the access times recorded by {@link #touch()}. They are written
+     * to the index if it is persisted, otherwise to the modification times
+     * of the files. Called periodically by {@link CacheAccessWriter}.
+     *
+     * @return the number of written caches.
+     */
+    static int flushAccessTimes() {
+        Map<String, Long> times = new HashMap<String, Long>();
+        Map<File, Long> fileTimes = new HashMap<File, Long>();
+        for (Iterator<String> it = touchedIds.iterator(); it.hasNext();) {
+            String id = it.next();
+            // touched again after this is written at the next time.
+            it.remove();
+
+            CacheEntry e = entries.get(id);
+            File file = e == null ? null : e.getFile();
+            if (file == null || e.getState() != CacheEntry.State.COMPLETE) {
+                continue;
+            }
+            Long time = Long.valueOf(e.getLastAccess());
+            times.put(id, time);
+            fileTimes.put(file, time);
+        }
+
+        if (times.isEmpty()) {
+            return 0;
+        }
+
+        if (index.isPersistent()) {
+            return index.updateLastModified(times);
+        }
+
+        int count = 0;
+        for (Map.Entry<File, Long> e : fileTimes.entrySet()) {
+            // the file may be moved or evicted meanwhile.
+            if (e.getKey().setLastModified(e.getValue().longValue())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return snapshot of the completed caches.
+     */
+    public static Map<String, File> getId2File() {
+        Map<String, File> id2File = new HashMap<String, File>();
+        for (CacheEntry e : entries.values()) {
+            File file = e.getFile();
+            if (e.getState() == CacheEntry.State.COMPLETE && file != null) {
+                id2File.put(e.getId(), file);
+            }
+        }
+        return Collections.unmodifiableMap(id2File);
+    }
+
+    /**
+     * [nl] ダウンロード中フラグをゲット
+     * @param id
+     * @return ダウンロード中ならtrue
+     */
+    public static boolean getDLFlag(String id) {
+        CacheEntry e = entries.get(id);
+        return e != null && e.getState() == CacheEntry.State.DOWNLOADING;
+    }
+
+    public Cache(String cacheId, String postfix) {
+        this.cacheId = cacheId;
+        this.entry = getEntry(cacheId);
+        this.postfix = postfix;
+
+        cacheFile = entry.getFile();
+        if (cacheFile == null) {
+            cacheFile = new File(getShardDirectory(cacheId), cacheId + postfix);
+        }
+    }
+
+    public Cache(String cacheId, String postfix, String desc) {
+        this.cacheId = cacheId;
+        this.entry = getEntry(cacheId);
+        this.postfix = postfix;
+
+        cacheFile = entry.getFile();
+        if (cacheFile == null) {
+            cacheFile = getDescribedCacheFile(desc);
+        }
+    }
+
+    protected File getDescribedCacheFile(String desc) {
+        StringBuffer decodedDesc = new StringBuffer(desc.length());
+
+        Matcher m = NUMBER_CHARACTER_REFERENCE_PATTERN.matcher(desc);
+
+        while (m.find()) {
+            m.appendReplacement(decodedDesc,
+                    Character.toString((char) Integer.parseInt(m.group(1))));
+        }
+        m.appendTail(decodedDesc);
+
+        String sanitizedDesc = getSanitizedDescription(decodedDesc.toString());
+
+        return new File(getShardDirectory(cacheId), cacheId + '_'
+                + sanitizedDesc + postfix);
+    }
+
+    static String getSanitizedDescription(String decodedDesc) {
+        String fileNameCharset = System.getProperty("fileNameCharset");
+
+        String narrowedDesc = narrowCharset(decodedDesc, fileNameCharset);
+
+        StringBuilder sanitizedDesc = new StringBuilder(narrowedDesc.length());
+
+        for (int i = 0; i < narrowedDesc.length(); i++) {
+            char c = narrowedDesc.charAt(i);
+            if (c == '\\' || c == '/' || c == ':' || c == ',' || c == ';'
+                    || c == '*' || c == '?' || c == '"' || c == '<' || c == '>'
+                    || c == '|') {
+                sanitizedDesc.append('-');
+            } else {
+                sanitizedDesc.append(c);
+            }
+        }
+        return sanitizedDesc.toString();
+    }
+
+    static String narrowCharset(String str, String charsetName) {
+        String narrowedDesc = str;
+        if (!charsetName.equals("")) {
+            try {
+                narrowedDesc =
+                        new String(str.getBytes(charsetName), charsetName);
+                // characters which are not supported by the charset
+                // become '?'
+            } catch (UnsupportedEncodingException e) {
+                Logger.warning(e.toString());
+            }
+
+        }
+        return narrowedDesc;
+    }
+
+    public String getId() {
+        return cacheId;
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    public String getCacheFileName() {
+        return cacheFile.getName();
+    }
+
+    public String getURLString() {
+        return cacheFile.toURI().toString();
+    }
+
+    public void setDescribe(String desc) {
+        cacheFile = getDescribedCacheFile(desc);
+    }
+
+    public void setTmpDescribe(String title) throws IOException {
+        File newName =
+                new File(cacheDir, NLTMP_ + getId() + "_"
+                        + getSanitizedDescription(title) + postfix);
+        File oldName = getCacheTmpFile();
+        if (oldName.equals(newName)) {
+            return;
+        }
+
+        synchronized (getLock(cacheId)) {
+            try {
+                moveFile(oldName, newName);
+                File validLengthFile = getValidLengthFile(oldName);
+                if (validLengthFile.exists()) {
+                    moveFile(validLengthFile, getValidLengthFile(newName));
+                }
+            } catch (IOException e) {
+                Logger.warning("rename failed: " + oldName.getPath() + " -> "
+                        + newName.getPath() + ": " + e.toString());
+                return;
+            }
+
+            synchronized (this) {
+                tmpFile = newName;
+            }
+            entry.setTmpFile(newName);
+            index.put(createRecord(getId(), newName, true));
+        }
+    }
+
+    /**
+     * Same as {@link #setTmpDescribe(String)}, but only while the download
+     * is suspended. A running download keeps writing to the current name.
+     *
+     * @param title title of the movie.
+     * @throws IOException
+     */
+    public void setSuspendedTmpDescribe(String title) throws IOException {
+        synchronized (getLock(cacheId)) {
+            if (entry.getState() == CacheEntry.State.PARTIAL) {
+                setTmpDescribe(title);
+            }
+        }
+    }
+
+    /**
+     * Rename the completed cache file to include the description. If the
+     * file is being sent now, it is renamed when the last user unpins it.
+     *
+     * @param desc description of the cache.
+     */
+    public void setStoredDescribe(String desc) {
+        pendingNames.put(cacheId, getDescribedCacheFile(desc).getName());
+        applyPendingName(entry);
+    }
+
+    private static void applyPendingName(CacheEntry e) {
+        String id = e.getId();
+        String name = pendingNames.get(id);
+        if (name == null) {
+            return;
+        }
+
+        synchronized (getLock(id)) {
+            File file = e.getFile();
+            if (file == null || file.getName().equals(name)) {
+                pendingNames.remove(id, name);
+                return;
+            }
+            if (!lockForEviction(e)) {
+                // retried by unpin().
+                return;
+            }
+
+            try {
+                File newFile = new File(file.getParentFile(), name);
+                moveFile(file, newFile);
+                uncount(e);
+                e.setFile(newFile);
+                count(e, newFile, e.getSize());
+
+                CacheIndex.Record old = index.getRecord(id);
+                index.put(createRecord(id, newFile, false, e.getSize(),
+                        old == null ? newFile.lastModified() : old.getLastModified()));
+                Logger.debug("cache renamed: " + file.getPath() + " -> "
+                        + newFile.getPath());
+            } catch (IOException ex) {
+                Logger.warning("rename failed: " + file.getPath() + " -> "
+                        + name + ": " + ex.toString());
+            } finally {
+                pendingNames.remove(id, name);
+                e.transit(CacheEntry.State.EVICTING, CacheEntry.State.COMPLETE);
+            }
+        }
+    }
+
+    /**
+     * Move a file to another name. If both names are on the same file system,
+     * the file is just renamed atomically, so the data is never written
+     * again. Copying is used only when the destination is on another device.
+     *
+     * @param srcFile file to be moved.
+     * @param dstFile new name. it is replaced if it already exists.
+     * @throws IOException failed to move. srcFile is left as it is.
+     */
+    static void moveFile(File srcFile, File dstFile) throws IOException {
+        Path src = srcFile.toPath();
+        Path dst = dstFile.toPath();
+        try {
+            Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // across devices. Files#move() copies and deletes the source.
+            Logger.debugWithThread("copying across devices: " + srcFile.getPath()
+                    + " -> " + dstFile.getPath());
+            Files.move(src, dst, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public long length() {
+        return cacheFile.length();
+    }
+
+    /**
+     * Remember the response headers of the download. They are saved with
+     * the cache by {@link #store()}.
+     *
+     * @param metadata response headers from the upstream.
+     */
+    void setMetadata(CacheMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return response headers of the completed cache, or null if unknown.
+     */
+    CacheMetadata getMetadata() {
+        return entry.getMetadata();
+    }
+
+    /**
+     * @return Content-Type from the upstream, or the one guessed from the
+     * postfix if it is not known.
+     */
+    public String getContentType() {
+        CacheMetadata m = entry.getMetadata();
+        if (m != null && m.getContentType() != null) {
+            return m.getContentType();
+        }
+
+        String name = cacheFile.getName();
+        if (name.endsWith(".mp4")) {
+            return "video/mp4";
+        } else if (name.endsWith(".swf")) {
+            return "application/x-shockwave-flash";
+        } else {
+            return "video/flv";
+        }
+    }
+
+    /**
+     * @return length of the tmp file, or 0 if it does not exist.
+     */
+    public long tmpLength() {
+        // the file is longer while it is preallocated and being written.
+        long length = entry.getTmpLength();
+        if (length >= 0) {
+            return length;
+        }
+
+        File file;
+        synchronized (this) {
+            file = tmpFile;
+        }
+        if (file == null) {
+            file = entry.getTmpFile();
+        }
+        if (file == null) {
+            return 0;
+        }
+        return file.length();
+    }
+
+    public boolean exists() {
+        refreshEntry();
+        CacheEntry.State state = entry.getState();
+        if (state == CacheEntry.State.COMPLETE
+                || state == CacheEntry.State.EVICTING) {
+            // the cache may be moved by the migrator after this object is
+            // made, so always follow the entry.
+            File knownFile = entry.getFile();
+            if (knownFile != null && knownFile.exists()) {
+                cacheFile = knownFile;
+                return true;
+            }
+
+            synchronized (getLock(cacheId)) {
+                // check again, it may be moved or evicted meanwhile.
+                knownFile = entry.getFile();
+                if (knownFile != null && knownFile.exists()) {
+                    cacheFile = knownFile;
+                    return true;
+                }
+
+                if (knownFile == null || !entry.transit(CacheEntry.State.COMPLETE,
+                        CacheEntry.State.ABSENT)) {
+                    return false;
+                }
+                Logger.debug("cache disappeared: " + knownFile.getPath());
+                uncount(entry);
+                index.remove(cacheId, false);
+                entry.setMetadata(null);
+                getMetadataFile(cacheId).delete();
+                removeIfUnused(entry);
+            }
+            // out of the lock, see store().
+            evictor.remove(cacheId);
+            return false;
+        }
+
+        // not indexed yet.
+        return cacheFile.exists();
+    }
+
+    /**
+     * Start downloading this cache. Only one thread can download the same
+     * cache at a time.
+     *
+     * @return true if the caller should save the download, false if someone
+     * else is downloading or the cache has been completed meanwhile.
+     */
+    public boolean beginDownload() {
+        // under the lock, so that setSuspendedTmpDescribe() does not rename
+        // the tmp file of PARTIAL while the download takes it over.
+        synchronized (getLock(cacheId)) {
+            while (true) {
+                refreshEntry();
+                CacheEntry.State state = entry.getState();
+                if (state != CacheEntry.State.ABSENT
+                        && state != CacheEntry.State.PARTIAL) {
+                    return false;
+                }
+                if (entry.transit(state, CacheEntry.State.DOWNLOADING)) {
+                    synchronized (this) {
+                        // it may be renamed since it was taken.
+                        tmpFile = null;
+                    }
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finish downloading without storing. It is harmless to call this after
+     * {@link #store()} or {@link #deleteTmp()}.
+     */
+    public void endDownload() {
+        synchronized (getLock(cacheId)) {
+            File file = entry.getTmpFile();
+            if (file != null && file.exists()) {
+                entry.transit(CacheEntry.State.DOWNLOADING,
+                        CacheEntry.State.PARTIAL);
+            } else {
+                entry.setTmpFile(null);
+                if (entry.transit(CacheEntry.State.DOWNLOADING,
+                        CacheEntry.State.ABSENT)) {
+                    removeIfUnused(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the access time of this cache in memory. It is written later
+     * by {@link #flushAccessTimes()}, so this does no disk I/O.
+     */
+    public void touch() {
+        entry.setLastAccess(System.currentTimeMillis());
+        touchedIds.add(cacheId);
+    }
+
+    /**
+     * Record a request of this cache for the eviction policy.
+     * Call this on both hits and misses.
+     */
+    public void recordAccess() {
+        entry.recordAccess(System.currentTimeMillis());
+        evictor.access(cacheId);
+    }
+
+    /**
+     * Protect this cache from eviction until {@link #unpin()} is called.
+     * Call this before checking {@link #exists()} to send the cache.
+     */
+    public void pin() {
+        while (true) {
+            refreshEntry();
+            CacheEntry e = entry;
+            e.incrementPins();
+            CacheEntry.State state = e.getState();
+            if (state != CacheEntry.State.EVICTING
+                    && state != CacheEntry.State.REMOVED) {
+                return;
+            }
+
+            // wait for the end of the eviction and see the result.
+            e.decrementPins();
+            synchronized (getLock(cacheId)) {
+                // do nothing
+            }
+        }
+    }
+
+    public void unpin() {
+        if (entry.decrementPins() == 0 && pendingNames.containsKey(cacheId)) {
+            applyPendingName(entry);
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (Boolean.getBoolean("touchCache")) {
+            touch();
+        }
+        return new FileInputStream(cacheFile);
+    }
+
+    /**
+     * 一時ファイルの入力ストリームを得る
+     * @return 一時ファイルの入力ストリーム
+     * @throws IOException
+     */
+    public InputStream getTmpInputStream() throws IOException {
+        File cacheTmpFile = getCacheTmpFile();
+        return new FileInputStream(cacheTmpFile);
+    }
+
+    /**
+     * 一時ファイルの出力ストリームを得る
+     * @param append 追記する場合true
+     * @return 一時ファイルの出力ストリーム
+     * @throws IOException
+     */
+    public OutputStream getTmpOutputStream(boolean append) throws IOException {
+        File cacheTmpFile = getCacheTmpFile();
+        return new FileOutputStream(cacheTmpFile, append);
+    }
+
+    /**
+     * Get the output stream of the tmp file preallocated to the whole size,
+     * so that the file is not fragmented and the lack of disk space is
+     * found before the download. The stream writes from the offset, and
+     * the file is truncated to the written position at closing, so
+     * {@link #tmpLength()} is the length of the valid data as before. If
+     * the stream is not closed because of a crash, the file is truncated to
+     * the offset at the next startup.
+     *
+     * @param offset position to start writing.
+     * @param totalLength whole size of the cache, or -1 if unknown.
+     * @return output stream of the tmp file.
+     * @throws IOException failed to open, or no space for the cache.
+     */
+    public OutputStream getTmpOutputStream(long offset, long totalLength)
+            throws IOException {
+        File cacheTmpFile = getCacheTmpFile();
+        RandomAccessFile file = new RandomAccessFile(cacheTmpFile, "rw");
+        try { // ensure file.close() in error cases.
+            long growth = totalLength - file.length();
+            if (growth > 0) {
+                long usable = cacheTmpFile.getUsableSpace();
+                if (usable < growth) {
+                    throw new IOException(String.format(
+                            "not enough space for %s: %,dbytes required, %,dbytes available",
+                            cacheTmpFile.getName(), Long.valueOf(growth),
+                            Long.valueOf(usable)));
+                }
+                writeValidLength(cacheTmpFile, offset);
+                file.setLength(totalLength);
+            }
+
+            return new TmpOutputStream(file, offset);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Output stream which writes to the explicit position of the tmp file.
+     */
+    private class TmpOutputStream extends OutputStream {
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private long position;
+
+        TmpOutputStream(RandomAccessFile file, long position) {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.position = position;
+            entry.setTmpLength(position);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+            entry.setTmpLength(position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file == null) {
+                return;
+            }
+
+            try {
+                // drop the preallocated area which is not written.
+                channel.truncate(position);
+            } finally {
+                file.close();
+                file = null;
+                entry.setTmpLength(-1);
+            }
+
+            synchronized (getLock(cacheId)) {
+                File cacheTmpFile = entry.getTmpFile();
+                if (cacheTmpFile != null) {
+                    // the length of the file is valid now.
+                    getValidLengthFile(cacheTmpFile).delete();
+                }
+                if (cacheTmpFile != null && cacheTmpFile.exists()) {
+                    index.put(createRecord(cacheId, cacheTmpFile, true));
+                }
+            }
+        }
+    }
+
+    public void store() throws IOException {
+        File cacheTmpFile = getCacheTmpFile();
+
+        // TODO the knowledge of "low" depends on NicoNico, so it should
+        // not exist this cache abstraction layer.
+
+        // new caches go to the fastest volume which has room. the cache is
+        // stored next to the tmp file by a rename, and the mover copies it
+        // to another volume later, because the copy may take long.
+        CacheVolume tmpVolume = volumes.getVolume(cacheTmpFile);
+        CacheVolume volume = volumes.choose(cacheTmpFile.length(),
+                Integer.MIN_VALUE);
+        if (volume == null) {
+            volume = volumes.getPrimary();
+        }
+        File parentDir = getShardDirectory(cacheDir, cacheId);
+        if (!cacheId.endsWith("low")) {
+            String lowId = cacheId + "low";
+            CacheEntry lowEntry = entries.get(lowId);
+            File lowFile = lowEntry == null ? null : lowEntry.getFile();
+            if (lowFile != null) {
+                volume = volumes.getVolume(lowFile);
+                if (volume == tmpVolume) {
+                    parentDir = lowFile.getParentFile();
+                }
+            }
+        }
+
+        CacheIndex.Record r;
+        synchronized (getLock(cacheId)) {
+            // the entry may be removed if beginDownload() is not called.
+            refreshEntry();
+            cacheFile = new File(parentDir, cacheFile.getName());
+
+            try {
+                makeDirectory(parentDir);
+                moveFile(cacheTmpFile, cacheFile);
+                entry.setMetadata(metadata);
+                saveMetadata(cacheId, metadata);
+                index.remove(cacheId, true);
+                r = createRecord(cacheId, cacheFile, false);
+                index.put(r);
+            } catch (IOException e) {
+                // the caller reports the error.
+                cacheTmpFile.delete();
+                index.remove(cacheId, true);
+                entry.setTmpFile(null);
+                if (entry.transit(CacheEntry.State.DOWNLOADING,
+                        CacheEntry.State.ABSENT)) {
+                    removeIfUnused(entry);
+                }
+                throw e;
+            }
+
+            entry.setFile(cacheFile);
+            entry.setLastAccess(System.currentTimeMillis());
+            count(entry, cacheFile, r.getSize());
+            entry.setTmpFile(null);
+            // normally from DOWNLOADING, but storing without
+            // beginDownload() is also allowed.
+            CacheEntry.State state;
+            do {
+                state = entry.getState();
+            } while (state != CacheEntry.State.COMPLETE
+                    && !entry.transit(state, CacheEntry.State.COMPLETE));
+        }
+
+        // out of the lock, so that the lock of the id and the lock of the
+        // evictor are never nested.
+        evictor.add(cacheId, r.getSize());
+        if (volume != null && volume != tmpVolume) {
+            mover.request(cacheId, volume);
+        }
+    }
+
+    public void deleteTmp() throws IOException {
+        File cacheTmpFile = getCacheTmpFile();
+        synchronized (getLock(cacheId)) {
+            cacheTmpFile.delete();
+            getValidLengthFile(cacheTmpFile).delete();
+            index.remove(getId(), true);
+            entry.setTmpFile(null);
+            entry.transit(CacheEntry.State.DOWNLOADING, CacheEntry.State.ABSENT);
+            entry.transit(CacheEntry.State.PARTIAL, CacheEntry.State.ABSENT);
+            removeIfUnused(entry);
+        }
+    }
+
+    // [nl] 一時ファイル名を変更した
+    // tmpFileのtest and setをatomicにするためにsynchronizedが必要。
+    protected File getCacheTmpFile() throws IOException {
+        // the name is resolved under the lock of the id, so that an empty
+        // file is not made with the old name while it is renamed by
+        // setSuspendedTmpDescribe().
+        synchronized (getLock(cacheId)) {
+            refreshEntry();
+
+            File file;
+            synchronized (this) {
+                if (tmpFile == null) {
+                    //tmpFile = File.createTempFile(cacheId + ".flv-", TMP, cacheDir);
+
+                    File knownTmpFile = entry.getTmpFile();
+                    if (knownTmpFile == null) {
+                        tmpFile = new File(cacheDir, NLTMP_ + cacheFile.getName());
+                    } else {
+                        tmpFile = knownTmpFile;
+                    }
+                }
+                file = tmpFile;
+            }
+
+            if (!file.exists()) {
+                file.createNewFile();
+                index.put(createRecord(getId(), file, true));
+            }
+            entry.setTmpFile(file);
+            return file;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package dareka.processor.impl;
+
+import dareka.common.Logger;
+
+/**
+ * Write the access times recorded on cache hits periodically, so that the
+ * hit path does not wait for the metadata write of the file system.
+ */
+class CacheAccessWriter implements Runnable {
+    private static final long WRITE_INTERVAL = 60 * 1000;
+
+    private volatile Thread thread;
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(this, "CacheAccessWriter");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public void run() {
+        while (thread == Thread.currentThread()) {
+            try {
+                Thread.sleep(WRITE_INTERVAL);
+            } catch (InterruptedException e) {
+                Logger.debugWithThread(e);
+                return;
+            }
+
+            try {
+                int written = Cache.flushAccessTimes();
+                if (written > 0) {
+                    Logger.debug("cache access times written: " + written);
+                }
+            } catch (RuntimeException e) {
+                // keep the thread alive for the next chance.
+                Logger.error(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package dareka.processor.impl;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State of a cache identified by an id. There is only one entry for an id,
+ * and every thread which handles the id shares it.
+ *
+ * <ul>
+ * <li>ABSENT or PARTIAL to DOWNLOADING: a download starts.
+ * <li>DOWNLOADING to COMPLETE: the download is stored.
+ * <li>DOWNLOADING to PARTIAL or ABSENT: the download ends without
+ * completion.
+ * <li>COMPLETE to EVICTING: the file is going to be deleted or moved. It
+ * goes to ABSENT after deleting, or back to COMPLETE.
+ * <li>COMPLETE to ABSENT: the file is removed by someone else.
+ * <li>ABSENT to REMOVED: the entry holds nothing and is forgotten. A user
+ * which still has it must get the new entry of the id.
+ * </ul>
+ *
+ * The state is changed only by compare-and-set, so two threads never
+ * believe that both of them own the same transition. Files are changed by
+ * {@link Cache} under the lock of the id.
+ */
+class CacheEntry {
+    enum State {
+        /** no file. */
+        ABSENT,
+        /** the tmp file is being written by a download. */
+        DOWNLOADING,
+        /** the tmp file is left by a suspended download. */
+        PARTIAL,
+        /** the cache file is available. */
+        COMPLETE,
+        /** the cache file is being deleted or moved. */
+        EVICTING,
+        /** not managed any more. */
+        REMOVED,
+    }
+
+    private final String id;
+    private final AtomicReference<State> state =
+            new AtomicReference<State>(State.ABSENT);
+    private final AtomicInteger pins = new AtomicInteger();
+    private final AtomicInteger accessCount = new AtomicInteger();
+    private volatile long lastAccess;
+    private volatile File file;
+    private volatile long size;
+    private volatile File tmpFile;
+    private volatile long tmpLength = -1;
+    private volatile CacheMetadata metadata;
+
+    CacheEntry(String id) {
+        this.id = id;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    /**
+     * Change the state only if the current state is expected one.
+     *
+     * @param expect expected current state.
+     * @param update new state.
+     * @return true if changed.
+     */
+    boolean transit(State expect, State update) {
+        return state.compareAndSet(expect, update);
+    }
+
+    /**
+     * Change the state unconditionally. Use this only while the entry is
+     * not shared yet, e.g. at loading the index.
+     *
+     * @param update new state.
+     */
+    void setState(State update) {
+        state.set(update);
+    }
+
+    /**
+     * @return the number of users which are sending the cache file.
+     */
+    int getPins() {
+        return pins.get();
+    }
+
+    int incrementPins() {
+        return pins.incrementAndGet();
+    }
+
+    int decrementPins() {
+        return pins.decrementAndGet();
+    }
+
+    /**
+     * Count a request of the cache.
+     *
+     * @param time time of the request.
+     */
+    void recordAccess(long time) {
+        accessCount.incrementAndGet();
+        lastAccess = time;
+    }
+
+    /**
+     * @return the number of requests since the last decay.
+     */
+    int getAccessCount() {
+        return accessCount.get();
+    }
+
+    /**
+     * Halve the access count, so that old requests count less.
+     */
+    void decayAccessCount() {
+        int count;
+        do {
+            count = accessCount.get();
+        } while (count > 0 && !accessCount.compareAndSet(count, count / 2));
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
+    }
+
+    /**
+     * @return the cache file, or null if it has never completed.
+     */
+    File getFile() {
+        return file;
+    }
+
+    void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the size of the cache file counted in {@link CacheStats}.
+     */
+    long getSize() {
+        return size;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return the tmp file, or null if no download has started.
+     */
+    File getTmpFile() {
+        return tmpFile;
+    }
+
+    void setTmpFile(File tmpFile) {
+        this.tmpFile = tmpFile;
+    }
+
+    /**
+     * @return the length of the valid data in the tmp file which is being
+     * written, or -1 if the length of the file is valid.
+     */
+    long getTmpLength() {
+        return tmpLength;
+    }
+
+    void setTmpLength(long tmpLength) {
+        this.tmpLength = tmpLength;
+    }
+
+    /**
+     * @return response headers of the completed cache, or null if unknown.
+     */
+    CacheMetadata getMetadata() {
+        return metadata;
+    }
+
+    void setMetadata(CacheMetadata metadata) {
+        this.metadata = metadata;
+    }
+}
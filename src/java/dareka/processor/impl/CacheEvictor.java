@@ -0,0 +1,284 @@
+package dareka.processor.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dareka.common.Logger;
+
+/**
+ * Keep the total size of the caches under cacheMaxSize.
+ *
+ * <p>
+ * Completed caches and their sizes are kept in memory, and the
+ * {@link EvictionPolicy} orders them, so the victims can be chosen without
+ * scanning the disk. The eviction runs on its own thread when the total size
+ * exceeds the high watermark, and stops when it becomes lower than the low
+ * watermark. Caches which are being sent to the browser (pinned) or being
+ * downloaded are never evicted. Files are deleted out of the lock, so
+ * requests which record accesses never wait for the disk.
+ *
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>cacheMaxSize: maximum size in megabytes. 0 means unlimited.
+ * <li>cacheHighWatermark: percentage of cacheMaxSize to start eviction.
+ * <li>cacheLowWatermark: percentage of cacheMaxSize to stop eviction.
+ * <li>cacheEvictionPolicy: lru, lfu, arc or tinylfu. It is applied at
+ * startup.
+ * </ul>
+ */
+class CacheEvictor implements Runnable {
+    private static final long CHECK_INTERVAL = 60 * 1000;
+    private static final long MEGA = 1024 * 1024;
+
+    private final Object lock = new Object();
+    private EvictionPolicy policy = new LruPolicy();
+    private final Map<String, Long> sizes = new HashMap<String, Long>();
+    private long totalSize = 0;
+    private boolean ready = false;
+    /** the victim which is being deleted out of the lock, or null. */
+    private String evicting;
+    /** true if the victim is added again while it is being deleted. */
+    private boolean evictingAdded;
+    private volatile boolean stopped = false;
+    private Thread thread;
+
+    /**
+     * Replace all entries. Until this method is called, no cache is evicted
+     * because the total size is not known yet.
+     *
+     * @param records records of completed caches.
+     */
+    void reset(List<CacheIndex.Record> records) {
+        // the access times in memory are newer than the records. take them
+        // before sorting because they may change meanwhile.
+        final Map<String, Long> times = new HashMap<String, Long>();
+        for (CacheIndex.Record r : records) {
+            times.put(r.getId(), Long.valueOf(Cache.getLastAccess(r.getId())));
+        }
+        List<CacheIndex.Record> sorted =
+                new ArrayList<CacheIndex.Record>(records);
+        Collections.sort(sorted, new Comparator<CacheIndex.Record>() {
+            public int compare(CacheIndex.Record o1, CacheIndex.Record o2) {
+                return times.get(o1.getId()).compareTo(times.get(o2.getId()));
+            }
+        });
+
+        synchronized (lock) {
+            policy = createPolicy(System.getProperty("cacheEvictionPolicy"));
+            sizes.clear();
+            totalSize = 0;
+            for (CacheIndex.Record r : sorted) {
+                addEntry(r.getId(), r.getSize());
+            }
+            ready = true;
+            lock.notifyAll();
+        }
+    }
+
+    static EvictionPolicy createPolicy(String name) {
+        if (name == null || name.equals("") || name.equalsIgnoreCase("lru")) {
+            return new LruPolicy();
+        } else if (name.equalsIgnoreCase("lfu")) {
+            return new LfuPolicy();
+        } else if (name.equalsIgnoreCase("arc")) {
+            return new ArcPolicy();
+        } else if (name.equalsIgnoreCase("tinylfu")) {
+            return new TinyLfuPolicy();
+        } else {
+            Logger.warning("unknown cacheEvictionPolicy: " + name + ", use lru");
+            return new LruPolicy();
+        }
+    }
+
+    void add(String id, long size) {
+        synchronized (lock) {
+            addEntry(id, size);
+            lock.notifyAll();
+        }
+    }
+
+    private void addEntry(String id, long size) {
+        if (id.equals(evicting)) {
+            evictingAdded = true;
+        }
+        Long old = sizes.put(id, Long.valueOf(size));
+        if (old != null) {
+            totalSize -= old.longValue();
+        }
+        totalSize += size;
+        policy.onAdd(id, size);
+    }
+
+    /**
+     * Forget the cache which has disappeared without eviction, e.g. deleted
+     * by hand, so that it is not counted in the total size any more.
+     *
+     * @param id id of the cache.
+     */
+    void remove(String id) {
+        synchronized (lock) {
+            // if it is stored again meanwhile, add() has replaced it or
+            // will replace it.
+            if (Cache.isCompleted(id)) {
+                return;
+            }
+            Long size = sizes.remove(id);
+            if (size != null) {
+                totalSize -= size.longValue();
+                policy.onRemove(id);
+            }
+        }
+    }
+
+    /**
+     * Record a request of the movie. Call this on both hits and misses.
+     *
+     * @param id id of the cache.
+     */
+    void access(String id) {
+        synchronized (lock) {
+            policy.onAccess(id);
+        }
+    }
+
+    long getTotalSize() {
+        synchronized (lock) {
+            return totalSize;
+        }
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        stopped = false;
+        thread = new Thread(this, "CacheEvictor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        thread = null;
+    }
+
+    public void run() {
+        while (!stopped) {
+            try {
+                synchronized (lock) {
+                    while (!stopped
+                            && !(ready && totalSize > getWatermark("cacheHighWatermark", 95))) {
+                        lock.wait(CHECK_INTERVAL);
+                    }
+                }
+
+                if (!stopped) {
+                    evict(getWatermark("cacheLowWatermark", 90));
+                }
+            } catch (InterruptedException e) {
+                Logger.debugWithThread(e);
+                return;
+            } catch (RuntimeException e) {
+                // keep the thread alive for the next chance.
+                Logger.error(e);
+            }
+        }
+    }
+
+    private void evict(long lowWatermark) {
+        int count = 0;
+        long evictedSize = 0;
+        final Set<String> failed = new HashSet<String>();
+        EvictionPolicy.Guard guard = new EvictionPolicy.Guard() {
+            public boolean isEvictable(String id) {
+                return Cache.isEvictable(id) && !failed.contains(id);
+            }
+        };
+
+        while (!stopped) {
+            String victim;
+            synchronized (lock) {
+                if (totalSize <= lowWatermark) {
+                    break;
+                }
+
+                policy.setCapacity(getCapacity());
+                victim = policy.selectVictim(guard);
+                if (victim == null) {
+                    if (failed.isEmpty()) {
+                        Logger.warning("no cache can be evicted");
+                    }
+                    break;
+                }
+                evicting = victim;
+                evictingAdded = false;
+            }
+
+            // delete out of the lock, because access() is called on every
+            // request.
+            boolean evicted = Cache.evict(victim);
+
+            synchronized (lock) {
+                evicting = null;
+                if (!evicted) {
+                    // pinned meanwhile or failed to delete.
+                    // try again at the next time.
+                    failed.add(victim);
+                } else {
+                    // if it is downloaded again meanwhile, the new one is
+                    // already counted.
+                    if (!evictingAdded) {
+                        policy.onRemove(victim);
+                        Long size = sizes.remove(victim);
+                        if (size != null) {
+                            totalSize -= size.longValue();
+                            evictedSize += size.longValue();
+                        }
+                    }
+                    count++;
+                }
+            }
+        }
+
+        if (count > 0) {
+            Logger.info("cache evicted       : %,d files, %,dbytes",
+                    Integer.valueOf(count), Long.valueOf(evictedSize));
+        }
+    }
+
+    /**
+     * @return watermark in bytes, or Long.MAX_VALUE if the size is unlimited.
+     */
+    private long getWatermark(String key, int defaultPercentage) {
+        long maxSize = getCapacity();
+        if (maxSize == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        int percentage =
+                Integer.getInteger(key, defaultPercentage).intValue();
+        return maxSize / 100 * percentage;
+    }
+
+    /**
+     * @return cacheMaxSize in bytes, or Long.MAX_VALUE if it is unlimited.
+     */
+    private long getCapacity() {
+        long maxSize = Long.getLong("cacheMaxSize", 0).longValue() * MEGA;
+        if (maxSize <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return maxSize;
+    }
+}
@@ -0,0 +1,525 @@
+package dareka.processor.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+
+/**
+ * Persistent index of the cache directory, so that the startup does not
+ * need to list the whole directory tree.
+ *
+ * <p>
+ * The index file is a journal. {@link #compact()} writes a snapshot of all
+ * records, and each change of the cache is appended to it after that. The
+ * snapshot is written again when the journal grows larger than twice the
+ * records, so that it does not grow forever on a long run. At startup the
+ * journal is replayed by {@link #load()}. The result is trusted
+ * only if the modification time of every directory recorded in the index is
+ * unchanged. Otherwise the files have been touched by someone else, and the
+ * caller must rescan the directory. Directories which do not hold caches,
+ * such as the comment directory, are not recorded, because they are
+ * changed at every request.
+ *
+ * <p>
+ * If the index file is not given, this class just keeps the records in
+ * memory.
+ */
+class CacheIndex {
+    private static final int MAGIC = 0x4e434958; // "NCIX"
+    private static final int VERSION = 3;
+    private static final int ENTRY = 'E';
+    private static final int REMOVE = 'R';
+    private static final int DIRECTORY = 'D';
+    /** the journal shorter than this is not compacted. */
+    private static final int MIN_COMPACT_RECORDS = 10000;
+
+    private final File cacheDir;
+    private final File indexFile;
+    private final Map<String, Record> completes = new HashMap<String, Record>();
+    private final Map<String, Record> partials = new HashMap<String, Record>();
+    private final Map<String, Long> directories = new HashMap<String, Long>();
+    private DataOutputStream journal;
+    /** the number of records appended since the last snapshot. */
+    private long appended;
+
+    /**
+     * @param cacheDir root of the cache directory.
+     * @param indexFile file to persist the index. null means in-memory only.
+     */
+    CacheIndex(File cacheDir, File indexFile) {
+        this.cacheDir = cacheDir;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Load the index file.
+     *
+     * @return true if the index is loaded and it is up to date.
+     */
+    synchronized boolean load() {
+        clear();
+
+        if (indexFile == null || !indexFile.isFile()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Logger.info("cache index is incompatible, rebuilding...");
+                clear();
+                return false;
+            }
+
+            replay(in);
+        } catch (IOException e) {
+            Logger.warning("failed to read cache index: " + e.toString());
+            clear();
+            return false;
+        } finally {
+            CloseUtil.close(in);
+        }
+
+        for (Map.Entry<String, Long> dir : directories.entrySet()) {
+            File file = toFile(dir.getKey());
+            if (Cache.isExcludedDirectory(file)) {
+                continue;
+            }
+            if (file.lastModified() != dir.getValue().longValue()) {
+                Logger.info("cache directory is modified, rebuilding index...");
+                clear();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        while (true) {
+            int tag;
+            try {
+                tag = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return;
+            }
+
+            try {
+                if (tag == ENTRY) {
+                    Record r = Record.read(in);
+                    getMap(r.isPartial()).put(r.getId(), r);
+                } else if (tag == REMOVE) {
+                    boolean partial = in.readBoolean();
+                    String id = in.readUTF();
+                    getMap(partial).remove(id);
+                } else if (tag == DIRECTORY) {
+                    String path = in.readUTF();
+                    long lastModified = in.readLong();
+                    directories.put(path, Long.valueOf(lastModified));
+                } else {
+                    throw new IOException("broken record: " + tag);
+                }
+            } catch (EOFException e) {
+                // the last record is not completed because of the crash.
+                // the directory record which should follow it is also lost,
+                // so the check of the modification time finds it.
+                Logger.debug("cache index is truncated");
+                return;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        completes.clear();
+        partials.clear();
+        directories.clear();
+    }
+
+    /**
+     * Add or replace the record. The directory which contains the file is
+     * also recorded.
+     *
+     * @param r record to put.
+     */
+    synchronized void put(Record r) {
+        getMap(r.isPartial()).put(r.getId(), r);
+
+        if (journal != null) {
+            try {
+                journal.writeByte(ENTRY);
+                r.write(journal);
+                appended++;
+                writeDirectory(toFile(r.getPath()).getParentFile());
+                journal.flush();
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+        }
+    }
+
+    /**
+     * Update the modification times of the completed caches at once. The
+     * journal is flushed only once, so use this for batched updates. The
+     * journal is compacted here if it has grown too large.
+     *
+     * @param times new modification times by the id. ids which have no
+     * record are ignored.
+     * @return the number of updated records.
+     */
+    synchronized int updateLastModified(Map<String, Long> times) {
+        List<Record> updated = new ArrayList<Record>();
+        for (Map.Entry<String, Long> e : times.entrySet()) {
+            Record r = completes.get(e.getKey());
+            if (r != null && r.getLastModified() != e.getValue().longValue()) {
+                r = r.withLastModified(e.getValue().longValue());
+                completes.put(r.getId(), r);
+                updated.add(r);
+            }
+        }
+
+        if (journal != null && !updated.isEmpty()) {
+            try {
+                for (Record r : updated) {
+                    journal.writeByte(ENTRY);
+                    r.write(journal);
+                }
+                journal.flush();
+                appended += updated.size();
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+
+            // this is called periodically, so check the journal here.
+            long records = completes.size() + partials.size();
+            if (journal != null
+                    && appended > Math.max(MIN_COMPACT_RECORDS, 2 * records)) {
+                compact();
+            }
+        }
+
+        return updated.size();
+    }
+
+    /**
+     * Remove the record.
+     *
+     * @param id id of the cache.
+     * @param partial true for a partial cache.
+     */
+    synchronized void remove(String id, boolean partial) {
+        Record r = getMap(partial).remove(id);
+        if (r == null) {
+            return;
+        }
+
+        if (journal != null) {
+            try {
+                journal.writeByte(REMOVE);
+                journal.writeBoolean(partial);
+                journal.writeUTF(id);
+                appended++;
+                writeDirectory(toFile(r.getPath()).getParentFile());
+                journal.flush();
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+        }
+    }
+
+    /**
+     * Record the current modification time of the directory.
+     * Call this after the directory is changed without put() or remove().
+     *
+     * @param dir directory in the cache directory.
+     */
+    synchronized void updateDirectory(File dir) {
+        if (Cache.isExcludedDirectory(dir)) {
+            return;
+        }
+
+        if (journal == null) {
+            directories.put(toPath(dir), Long.valueOf(dir.lastModified()));
+            return;
+        }
+
+        try {
+            writeDirectory(dir);
+            journal.flush();
+        } catch (IOException e) {
+            disableJournal(e);
+        }
+    }
+
+    private void writeDirectory(File dir) throws IOException {
+        String path = toPath(dir);
+        long lastModified = dir.lastModified();
+        directories.put(path, Long.valueOf(lastModified));
+
+        journal.writeByte(DIRECTORY);
+        journal.writeUTF(path);
+        journal.writeLong(lastModified);
+        appended++;
+    }
+
+    private void disableJournal(IOException e) {
+        Logger.warning("failed to write cache index: " + e.toString());
+        CloseUtil.close(journal);
+        journal = null;
+        // force rebuilding at the next startup.
+        indexFile.delete();
+    }
+
+    /**
+     * @return true if the records are persisted to the index file.
+     */
+    synchronized boolean isPersistent() {
+        return journal != null;
+    }
+
+    synchronized Record getRecord(String id) {
+        return completes.get(id);
+    }
+
+    synchronized List<Record> getRecords(boolean partial) {
+        return new ArrayList<Record>(getMap(partial).values());
+    }
+
+    /**
+     * Write a snapshot of the current records and start journaling.
+     */
+    synchronized void compact() {
+        if (indexFile == null) {
+            return;
+        }
+
+        CloseUtil.close(journal);
+        journal = null;
+
+        File tmpFile =
+                new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Record r : completes.values()) {
+                out.writeByte(ENTRY);
+                r.write(out);
+            }
+            for (Record r : partials.values()) {
+                out.writeByte(ENTRY);
+                r.write(out);
+            }
+            out.close();
+            out = null;
+
+            Cache.moveFile(tmpFile, indexFile);
+
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexFile, true)));
+            // the directory records must be taken after the rename,
+            // because it also changes the directory.
+            for (String path : new ArrayList<String>(directories.keySet())) {
+                File dir = toFile(path);
+                if (dir.isDirectory() && !Cache.isExcludedDirectory(dir)) {
+                    writeDirectory(dir);
+                } else {
+                    directories.remove(path);
+                }
+            }
+            writeDirectory(cacheDir);
+            journal.flush();
+            appended = 0;
+        } catch (IOException e) {
+            CloseUtil.close(out);
+            tmpFile.delete();
+            if (journal != null) {
+                disableJournal(e);
+            } else {
+                Logger.warning("failed to write cache index: " + e.toString());
+                indexFile.delete();
+            }
+        }
+    }
+
+    synchronized void close() {
+        CloseUtil.close(journal);
+        journal = null;
+    }
+
+    private Map<String, Record> getMap(boolean partial) {
+        return partial ? partials : completes;
+    }
+
+    /**
+     * @param file file in the cache directory or in another volume.
+     * @return relative path from the cache directory, or absolute path if
+     * the file is in another volume.
+     */
+    String toPath(File file) {
+        String path;
+        if (file.toPath().startsWith(cacheDir.toPath())) {
+            path = cacheDir.toPath().relativize(file.toPath()).toString();
+        } else {
+            path = file.getAbsolutePath();
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+
+    File toFile(String path) {
+        if (path.length() == 0) {
+            return cacheDir;
+        }
+
+        File file = new File(path.replace('/', File.separatorChar));
+        if (file.isAbsolute()) {
+            return file;
+        }
+        return new File(cacheDir, file.getPath());
+    }
+
+    /**
+     * An entry of the index. Type, id and title are the information for
+     * {@link NicoIdInfoCache} which is retrieved from the file name.
+     * Metadata is the response headers of a completed cache, or null if it
+     * is not known.
+     */
+    static class Record {
+        private String id;
+        private boolean partial;
+        private String path;
+        private long size;
+        private long lastModified;
+        private String infoType;
+        private String infoId;
+        private String infoTitle;
+        private CacheMetadata metadata;
+
+        Record(String id, boolean partial, String path, long size,
+                long lastModified, String infoType, String infoId,
+                String infoTitle, CacheMetadata metadata) {
+            this.id = id;
+            this.partial = partial;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.infoType = infoType;
+            this.infoId = infoId;
+            this.infoTitle = infoTitle;
+            this.metadata = metadata;
+        }
+
+        /**
+         * @param time new modification time.
+         * @return copy of this record with the modification time.
+         */
+        Record withLastModified(long time) {
+            return new Record(id, partial, path, size, time, infoType, infoId,
+                    infoTitle, metadata);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            String id = in.readUTF();
+            boolean partial = in.readBoolean();
+            String path = in.readUTF();
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            String infoType = readNullableUTF(in);
+            String infoId = readNullableUTF(in);
+            String infoTitle = readNullableUTF(in);
+            CacheMetadata metadata = null;
+            if (in.readBoolean()) {
+                metadata = CacheMetadata.read(in);
+            }
+            return new Record(id, partial, path, size, lastModified, infoType,
+                    infoId, infoTitle, metadata);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(id);
+            out.writeBoolean(partial);
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            writeNullableUTF(out, infoType);
+            writeNullableUTF(out, infoId);
+            writeNullableUTF(out, infoTitle);
+            out.writeBoolean(metadata != null);
+            if (metadata != null) {
+                metadata.write(out);
+            }
+        }
+
+        static String readNullableUTF(DataInputStream in)
+                throws IOException {
+            if (in.readBoolean()) {
+                return in.readUTF();
+            } else {
+                return null;
+            }
+        }
+
+        static void writeNullableUTF(DataOutputStream out, String str)
+                throws IOException {
+            out.writeBoolean(str != null);
+            if (str != null) {
+                out.writeUTF(str);
+            }
+        }
+
+        String getId() {
+            return id;
+        }
+
+        boolean isPartial() {
+            return partial;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getInfoType() {
+            return infoType;
+        }
+
+        String getInfoId() {
+            return infoId;
+        }
+
+        /**
+         * @return title, or null if the file name does not include it.
+         */
+        String getInfoTitle() {
+            return infoTitle;
+        }
+
+        CacheMetadata getMetadata() {
+            return metadata;
+        }
+    }
+}
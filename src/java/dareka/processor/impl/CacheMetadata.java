@@ -0,0 +1,178 @@
+package dareka.processor.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+import dareka.processor.HttpHeader;
+import dareka.processor.HttpRequestHeader;
+import dareka.processor.HttpResponseHeader;
+
+/**
+ * Response headers of the upstream which are needed to answer from the
+ * cache: Content-Type and the validators Last-Modified and ETag. Each of
+ * them is null if the upstream did not send it.
+ *
+ * <p>
+ * Besides the index, the metadata is saved in a file for each cache by
+ * {@link #save(File)}, so that it is not lost when the index is rebuilt.
+ */
+class CacheMetadata {
+    private static final int MAGIC = 0x4e434d44; // "NCMD"
+    private static final int VERSION = 1;
+
+    private final String contentType;
+    private final String lastModified;
+    private final String etag;
+
+    CacheMetadata(String contentType, String lastModified, String etag) {
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+        this.etag = etag;
+    }
+
+    /**
+     * @param responseHeader response header from the upstream.
+     * @return metadata in the header.
+     */
+    static CacheMetadata from(HttpResponseHeader responseHeader) {
+        return new CacheMetadata(
+                responseHeader.getMessageHeader(HttpHeader.CONTENT_TYPE),
+                responseHeader.getMessageHeader(HttpHeader.LAST_MODIFIED),
+                responseHeader.getMessageHeader(HttpHeader.ETAG));
+    }
+
+    static CacheMetadata read(DataInputStream in) throws IOException {
+        String contentType = CacheIndex.Record.readNullableUTF(in);
+        String lastModified = CacheIndex.Record.readNullableUTF(in);
+        String etag = CacheIndex.Record.readNullableUTF(in);
+        return new CacheMetadata(contentType, lastModified, etag);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        CacheIndex.Record.writeNullableUTF(out, contentType);
+        CacheIndex.Record.writeNullableUTF(out, lastModified);
+        CacheIndex.Record.writeNullableUTF(out, etag);
+    }
+
+    /**
+     * @param file file written by {@link #save(File)}.
+     * @return metadata in the file, or null if it does not exist or it is
+     * broken.
+     */
+    static CacheMetadata load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            return read(in);
+        } catch (IOException e) {
+            Logger.debug("broken metadata: " + file.getPath() + ": "
+                    + e.toString());
+            return null;
+        } finally {
+            CloseUtil.close(in);
+        }
+    }
+
+    /**
+     * Write the metadata to the file. The file is replaced atomically.
+     *
+     * @param file file to write.
+     * @throws IOException on failure.
+     */
+    void save(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: "
+                    + dir.getPath());
+        }
+
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            write(out);
+            out.close();
+        } catch (IOException e) {
+            CloseUtil.close(out);
+            tmpFile.delete();
+            throw e;
+        }
+        Cache.moveFile(tmpFile, file);
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    String getETag() {
+        return etag;
+    }
+
+    /**
+     * Evaluate the conditional request. If-None-Match has priority over
+     * If-Modified-Since as RFC 7232 says.
+     *
+     * @param requestHeader request from the browser.
+     * @return true if the browser has the same content.
+     */
+    boolean isNotModified(HttpRequestHeader requestHeader) {
+        String ifNoneMatch = requestHeader.getMessageHeader(HttpHeader.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return false;
+            }
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                if (stripWeak(tag.trim()).equals(stripWeak(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince =
+                requestHeader.getMessageHeader(HttpHeader.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && lastModified != null) {
+            if (ifModifiedSince.equals(lastModified)) {
+                return true;
+            }
+
+            long since = HttpHeader.parseDateString(ifModifiedSince);
+            long modified = HttpHeader.parseDateString(lastModified);
+            return since >= 0 && modified >= 0 && modified <= since;
+        }
+
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        if (tag.startsWith("W/")) {
+            return tag.substring(2);
+        }
+        return tag;
+    }
+}
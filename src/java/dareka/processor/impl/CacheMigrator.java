@@ -0,0 +1,94 @@
+package dareka.processor.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import dareka.common.Logger;
+
+/**
+ * Move caches placed directly under the volume directories into the sharded
+ * layout in background. The caches are moved in small batches with pauses,
+ * so the proxy keeps serving while migrating. Copies left by an interrupted
+ * move are deleted before migrating.
+ */
+class CacheMigrator implements Runnable {
+    private static final int BATCH_SIZE = 50;
+    private static final long BATCH_INTERVAL = 1000;
+    private static final long WAIT_INTERVAL = 1000;
+
+    private volatile Thread thread;
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(this, "CacheMigrator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private boolean isStopped() {
+        return thread != Thread.currentThread();
+    }
+
+    public void run() {
+        try {
+            while (!isStopped() && Cache.isIndexing()) {
+                Thread.sleep(WAIT_INTERVAL);
+            }
+
+            int deleted = Cache.deleteStaleCopies();
+            if (deleted > 0) {
+                Logger.info("deleted %,d incomplete copies of caches",
+                        Integer.valueOf(deleted));
+            }
+
+            List<File> roots = Cache.getVolumes().getDirectories();
+            List<String> targets = new ArrayList<String>();
+            for (Map.Entry<String, File> e : Cache.getId2File().entrySet()) {
+                if (roots.contains(e.getValue().getParentFile())) {
+                    targets.add(e.getKey());
+                }
+            }
+            if (targets.isEmpty()) {
+                return;
+            }
+
+            Logger.info("migrating %,d caches to the sharded layout",
+                    Integer.valueOf(targets.size()));
+
+            int moved = 0;
+            int skipped = 0;
+            for (int i = 0; i < targets.size() && !isStopped(); i++) {
+                if (Cache.migrate(targets.get(i))) {
+                    moved++;
+                } else {
+                    skipped++;
+                }
+
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    Thread.sleep(BATCH_INTERVAL);
+                }
+            }
+
+            if (isStopped()) {
+                return;
+            }
+            Logger.info("migrated %,d caches (%,d skipped)",
+                    Integer.valueOf(moved), Integer.valueOf(skipped));
+        } catch (InterruptedException e) {
+            Logger.debugWithThread(e);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package dareka.processor.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import dareka.common.Logger;
+
+/**
+ * Move caches between the {@link CacheVolume}s in background.
+ *
+ * <p>
+ * When a volume with limited capacity exceeds the high watermark, its
+ * coldest caches are demoted to a slower tier until it becomes lower than
+ * the low watermark. Caches requested often in a slower tier are promoted
+ * while a faster tier has room. Coldness is the number of requests counted
+ * on the hit path, which is halved after each pass, and then the time of
+ * the last request.
+ *
+ * <p>
+ * New caches are stored in the primary volume by a rename, and moved to
+ * the volume chosen for them by {@link #request(String, CacheVolume)}, so
+ * that the copy to another device does not block the download.
+ *
+ * <p>
+ * The watermarks are the percentages cacheHighWatermark and
+ * cacheLowWatermark of the capacity of each volume.
+ */
+class CacheMover implements Runnable {
+    private static final long INTERVAL = 10 * 60 * 1000;
+    /** the number of requests for a cache to be promoted. */
+    private static final int PROMOTE_THRESHOLD = 4;
+
+    private volatile Thread thread;
+    private final BlockingQueue<Request> requests =
+            new LinkedBlockingQueue<Request>();
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(this, "CacheMover");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Move the cache to the volume later.
+     *
+     * @param id id of the cache.
+     * @param target volume to move to.
+     */
+    void request(String id, CacheVolume target) {
+        if (thread == null) {
+            return;
+        }
+        requests.add(new Request(id, target));
+    }
+
+    private boolean isStopped() {
+        return thread != Thread.currentThread();
+    }
+
+    public void run() {
+        long nextPass = System.currentTimeMillis() + INTERVAL;
+        while (!isStopped()) {
+            try {
+                long wait = nextPass - System.currentTimeMillis();
+                Request r = (wait > 0)
+                        ? requests.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (r != null) {
+                    if (!Cache.moveTo(r.id, r.target)) {
+                        Logger.debug("cache is not moved: " + r.id);
+                    }
+                    continue;
+                }
+                nextPass = System.currentTimeMillis() + INTERVAL;
+
+                if (!Cache.isIndexing()) {
+                    for (CacheVolume v : Cache.getVolumes().getVolumes()) {
+                        demote(v);
+                    }
+                    for (CacheVolume v : Cache.getVolumes().getVolumes()) {
+                        promote(v);
+                    }
+                    Cache.decayAccessCounts();
+                }
+            } catch (InterruptedException e) {
+                Logger.debugWithThread(e);
+                return;
+            } catch (RuntimeException e) {
+                // keep the thread alive for the next chance.
+                Logger.error(e);
+            }
+        }
+    }
+
+    private void demote(CacheVolume v) {
+        if (v.getCapacity() <= 0
+                || v.getUsed() <= getWatermark(v, "cacheHighWatermark", 95)) {
+            return;
+        }
+
+        long lowWatermark = getWatermark(v, "cacheLowWatermark", 90);
+        List<Candidate> candidates = getCandidates(v);
+        Collections.sort(candidates);
+
+        int count = 0;
+        long movedSize = 0;
+        for (Candidate c : candidates) {
+            if (isStopped() || v.getUsed() <= lowWatermark) {
+                break;
+            }
+
+            CacheVolume target =
+                    Cache.getVolumes().choose(c.size, v.getPriority() + 1);
+            if (target == null) {
+                Logger.warning("no volume to demote caches from " + v);
+                break;
+            }
+
+            if (Cache.moveTo(c.id, target)) {
+                count++;
+                movedSize += c.size;
+            }
+        }
+
+        if (count > 0) {
+            Logger.info("cache demoted       : %,d files, %,dbytes from %s",
+                    Integer.valueOf(count), Long.valueOf(movedSize), v);
+        }
+    }
+
+    private void promote(CacheVolume v) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (Candidate c : getCandidates(v)) {
+            if (c.accessCount >= PROMOTE_THRESHOLD) {
+                candidates.add(c);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(candidates, Collections.reverseOrder());
+
+        int count = 0;
+        long movedSize = 0;
+        for (Candidate c : candidates) {
+            if (isStopped()) {
+                break;
+            }
+
+            CacheVolume target = getFasterRoom(v, c.size);
+            if (target == null) {
+                break;
+            }
+
+            if (Cache.moveTo(c.id, target)) {
+                count++;
+                movedSize += c.size;
+            }
+        }
+
+        if (count > 0) {
+            Logger.info("cache promoted      : %,d files, %,dbytes from %s",
+                    Integer.valueOf(count), Long.valueOf(movedSize), v);
+        }
+    }
+
+    /**
+     * @return the fastest volume which is faster than v and stays under the
+     * low watermark after placing the size, or null if none.
+     */
+    private CacheVolume getFasterRoom(CacheVolume v, long size) {
+        for (CacheVolume faster : Cache.getVolumes().getVolumes()) {
+            if (faster.getPriority() >= v.getPriority()) {
+                break;
+            }
+
+            if (faster.getCapacity() <= 0
+                    || faster.getUsed() + size
+                            <= getWatermark(faster, "cacheLowWatermark", 90)) {
+                return faster;
+            }
+        }
+        return null;
+    }
+
+    private static List<Candidate> getCandidates(CacheVolume v) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (CacheEntry e : Cache.getEntries(v)) {
+            candidates.add(new Candidate(e));
+        }
+        return candidates;
+    }
+
+    private static long getWatermark(CacheVolume v, String key,
+            int defaultPercentage) {
+        int percentage =
+                Integer.getInteger(key, defaultPercentage).intValue();
+        return v.getCapacity() / 100 * percentage;
+    }
+
+    private static class Request {
+        final String id;
+        final CacheVolume target;
+
+        Request(String id, CacheVolume target) {
+            this.id = id;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Snapshot of the access counts, so that they do not change while
+     * sorting.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        final String id;
+        final long size;
+        final int accessCount;
+        final long lastAccess;
+
+        Candidate(CacheEntry e) {
+            id = e.getId();
+            size = e.getSize();
+            accessCount = e.getAccessCount();
+            lastAccess = e.getLastAccess();
+        }
+
+        /**
+         * Colder one is smaller.
+         */
+        public int compareTo(Candidate o) {
+            if (accessCount != o.accessCount) {
+                return accessCount < o.accessCount ? -1 : 1;
+            }
+            if (lastAccess != o.lastAccess) {
+                return lastAccess < o.lastAccess ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
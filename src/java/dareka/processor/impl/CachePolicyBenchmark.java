@@ -0,0 +1,159 @@
+package dareka.processor.impl;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import dareka.common.CloseUtil;
+
+/**
+ * Replay a request trace on each {@link EvictionPolicy} and report the byte
+ * hit ratio.
+ *
+ * <pre>
+ * java -cp NicoCache.jar dareka.processor.impl.CachePolicyBenchmark [capacityMB [trace]]
+ * </pre>
+ *
+ * Each line of the trace is "id size", for example "sm9 31457280". Without
+ * the trace, a synthetic one is used: a few hundred movies are replayed
+ * constantly and thousands of movies are watched once.
+ */
+public class CachePolicyBenchmark {
+    private static final String[] POLICIES = { "lru", "lfu", "arc", "tinylfu" };
+    private static final long MEGA = 1024 * 1024;
+
+    private static final EvictionPolicy.Guard ANY = new EvictionPolicy.Guard() {
+        public boolean isEvictable(String id) {
+            return true;
+        }
+    };
+
+    private CachePolicyBenchmark() {
+        // avoid instantiation
+    }
+
+    public static void main(String[] args) throws IOException {
+        long capacity = 10 * 1024 * MEGA;
+        if (args.length > 0) {
+            capacity = Long.parseLong(args[0]) * MEGA;
+        }
+
+        List<Request> trace;
+        if (args.length > 1) {
+            trace = readTrace(args[1]);
+        } else {
+            trace = createSyntheticTrace();
+        }
+
+        System.out.println(String.format("%,d requests, capacity=%,dMB",
+                Integer.valueOf(trace.size()), Long.valueOf(capacity / MEGA)));
+        for (String name : POLICIES) {
+            replay(name, trace, capacity);
+        }
+    }
+
+    private static void replay(String name, List<Request> trace, long capacity) {
+        EvictionPolicy policy = CacheEvictor.createPolicy(name);
+        policy.setCapacity(capacity);
+
+        Map<String, Long> cached = new HashMap<String, Long>();
+        long used = 0;
+        long requestedBytes = 0;
+        long hitBytes = 0;
+        int hits = 0;
+
+        long start = System.nanoTime();
+        for (Request r : trace) {
+            requestedBytes += r.size;
+            policy.onAccess(r.id);
+
+            if (cached.containsKey(r.id)) {
+                hitBytes += r.size;
+                hits++;
+                continue;
+            }
+
+            policy.onAdd(r.id, r.size);
+            cached.put(r.id, Long.valueOf(r.size));
+            used += r.size;
+
+            while (used > capacity) {
+                String victim = policy.selectVictim(ANY);
+                if (victim == null) {
+                    break;
+                }
+                policy.onRemove(victim);
+                used -= cached.remove(victim).longValue();
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        System.out.println(String.format(
+                "%-8s byte hit ratio=%6.2f%%  hit ratio=%6.2f%%  (%,dms)", name,
+                Double.valueOf(100.0 * hitBytes / Math.max(requestedBytes, 1)),
+                Double.valueOf(100.0 * hits / Math.max(trace.size(), 1)),
+                Long.valueOf(elapsed)));
+    }
+
+    private static List<Request> readTrace(String fileName) throws IOException {
+        List<Request> trace = new ArrayList<Request>();
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(
+                        fileName), "UTF-8"));
+        try { // ensure closing in
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2) {
+                    continue;
+                }
+                trace.add(new Request(fields[0], Long.parseLong(fields[1])));
+            }
+        } finally {
+            CloseUtil.close(in);
+        }
+        return trace;
+    }
+
+    private static List<Request> createSyntheticTrace() {
+        Random random = new Random(0);
+        int hotMovies = 300;
+        int requests = 200000;
+
+        long[] hotSizes = new long[hotMovies];
+        for (int i = 0; i < hotMovies; i++) {
+            hotSizes[i] = (10 + random.nextInt(90)) * MEGA;
+        }
+
+        List<Request> trace = new ArrayList<Request>(requests);
+        int onceId = 0;
+        for (int i = 0; i < requests; i++) {
+            if (random.nextInt(100) < 40) {
+                // zipf-like popularity among the hot movies.
+                int rank = (int) Math.floor(Math.pow(hotMovies,
+                        random.nextDouble())) - 1;
+                trace.add(new Request("sm" + rank, hotSizes[rank]));
+            } else {
+                trace.add(new Request("so" + onceId++,
+                        (10 + random.nextInt(90)) * MEGA));
+            }
+        }
+        return trace;
+    }
+
+    private static class Request {
+        final String id;
+        final long size;
+
+        Request(String id, long size) {
+            this.id = id;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package dareka.processor.impl;
+
+import dareka.common.Logger;
+
+/**
+ * Correct the running totals of {@link CacheStats} periodically. They can
+ * drift when files are changed or removed by someone else, e.g. by hand.
+ * The entries of ids which are requested but not cached are also forgotten
+ * here.
+ */
+class CacheReconciler implements Runnable {
+    private static final long RECONCILE_INTERVAL = 60 * 60 * 1000;
+
+    private volatile Thread thread;
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(this, "CacheReconciler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public void run() {
+        while (thread == Thread.currentThread()) {
+            try {
+                Thread.sleep(RECONCILE_INTERVAL);
+            } catch (InterruptedException e) {
+                Logger.debugWithThread(e);
+                return;
+            }
+
+            if (Cache.isIndexing()) {
+                continue;
+            }
+
+            try {
+                int corrected = Cache.reconcile();
+                if (corrected > 0) {
+                    Logger.info("cache size corrected: %,d files, total %,dbytes",
+                            Integer.valueOf(corrected), Long.valueOf(Cache.size()));
+                }
+            } catch (RuntimeException e) {
+                // keep the thread alive for the next chance.
+                Logger.error(e);
+            }
+        }
+    }
+}
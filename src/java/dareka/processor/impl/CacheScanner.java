@@ -0,0 +1,197 @@
+package dareka.processor.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dareka.common.Logger;
+
+/**
+ * Scan the cache directory trees in parallel. Each directory is a task of
+ * the fork/join pool, so subdirectories are listed concurrently.
+ *
+ * <p>
+ * Found files are passed to the {@link Visitor} as soon as they are listed,
+ * so the visitor must be thread safe.
+ */
+class CacheScanner {
+    private static final long PROGRESS_INTERVAL = 5; // seconds
+
+    private final List<File> rootDirs;
+    private final Visitor visitor;
+    private final AtomicLong directoryCount = new AtomicLong();
+    private final AtomicLong fileCount = new AtomicLong();
+    private volatile ForkJoinPool pool;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Callback of the scanning. Methods are called from multiple threads.
+     */
+    interface Visitor {
+        /**
+         * Called before listing the directory.
+         *
+         * @param dir directory.
+         * @return false to skip the directory and its subdirectories.
+         */
+        boolean visitDirectory(File dir);
+
+        /**
+         * Called for each regular file.
+         *
+         * @param file found file.
+         * @param attrs attributes of the file.
+         * @param depth 1 for files directly under a root directory.
+         */
+        void visitFile(File file, BasicFileAttributes attrs, int depth);
+    }
+
+    CacheScanner(List<File> rootDirs, Visitor visitor) {
+        this.rootDirs = rootDirs;
+        this.visitor = visitor;
+    }
+
+    /**
+     * Scan the whole trees. The thread which call this method is blocked until
+     * the scanning is finished or cancelled, and the progress is reported
+     * periodically.
+     *
+     * @return true if the whole trees are scanned.
+     */
+    boolean scan() {
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final List<DirectoryTask> rootTasks = new ArrayList<DirectoryTask>();
+            for (File rootDir : rootDirs) {
+                rootTasks.add(new DirectoryTask(rootDir, 1));
+            }
+            ForkJoinTask<Void> task = pool.submit(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(rootTasks);
+                }
+            });
+            while (true) {
+                try {
+                    task.get(PROGRESS_INTERVAL, TimeUnit.SECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    Logger.info("indexing cache: %,d files in %,d directories",
+                            Long.valueOf(fileCount.get()),
+                            Long.valueOf(directoryCount.get()));
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+        } catch (CancellationException e) {
+            cancelled = true;
+        } catch (ExecutionException e) {
+            Logger.error(e);
+            cancelled = true;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return !cancelled;
+    }
+
+    /**
+     * Stop the scanning. scan() returns false after this method.
+     */
+    void cancel() {
+        cancelled = true;
+        ForkJoinPool p = pool;
+        if (p != null) {
+            p.shutdownNow();
+        }
+    }
+
+    long getDirectoryCount() {
+        return directoryCount.get();
+    }
+
+    long getFileCount() {
+        return fileCount.get();
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final int depth;
+
+        DirectoryTask(File dir, int depth) {
+            this.dir = dir;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+
+            if (!visitor.visitDirectory(dir)) {
+                return;
+            }
+            directoryCount.incrementAndGet();
+
+            List<DirectoryTask> subTasks = new ArrayList<DirectoryTask>();
+            try {
+                DirectoryStream<Path> stream =
+                        Files.newDirectoryStream(dir.toPath());
+                try {
+                    for (Path path : stream) {
+                        if (cancelled) {
+                            return;
+                        }
+
+                        // follow links as File#isDirectory() did, because
+                        // some users link subdirectories to other drives.
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(path,
+                                    BasicFileAttributes.class);
+                        } catch (IOException e) {
+                            Logger.debug(e);
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            DirectoryTask t =
+                                    new DirectoryTask(path.toFile(), depth + 1);
+                            t.fork();
+                            subTasks.add(t);
+                        } else if (attrs.isRegularFile()) {
+                            visitor.visitFile(path.toFile(), attrs, depth);
+                            fileCount.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                Logger.warning("failed to scan: " + dir.getPath() + ": "
+                        + e.toString());
+            } finally {
+                for (DirectoryTask t : subTasks) {
+                    t.join();
+                }
+            }
+        }
+    }
+}
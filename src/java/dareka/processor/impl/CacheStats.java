@@ -0,0 +1,128 @@
+package dareka.processor.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of the completed caches. They are updated when a cache is
+ * stored, moved or deleted, so reading them never touches the disk.
+ *
+ * <p>
+ * The totals are also broken down by the type prefix of the id (sm, nm,
+ * so...) and by the directory which contains the file. The directory is the
+ * relative path from the cache directory, "" for the root.
+ */
+class CacheStats {
+    private final Counter total = new Counter();
+    private final ConcurrentHashMap<String, Counter> types =
+            new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Counter> directories =
+            new ConcurrentHashMap<String, Counter>();
+
+    void clear() {
+        total.size.reset();
+        total.count.reset();
+        types.clear();
+        directories.clear();
+    }
+
+    /**
+     * Count a cache.
+     *
+     * @param id id of the cache.
+     * @param dir directory of the cache file.
+     * @param size size of the cache file.
+     */
+    void add(String id, String dir, long size) {
+        total.add(size, 1);
+        getCounter(types, getType(id)).add(size, 1);
+        getCounter(directories, dir).add(size, 1);
+    }
+
+    void remove(String id, String dir, long size) {
+        total.add(-size, -1);
+        getCounter(types, getType(id)).add(-size, -1);
+        getCounter(directories, dir).add(-size, -1);
+    }
+
+    /**
+     * Correct the size of a cache which is already counted.
+     *
+     * @param id id of the cache.
+     * @param dir directory of the cache file.
+     * @param delta difference from the counted size.
+     */
+    void adjust(String id, String dir, long delta) {
+        total.add(delta, 0);
+        getCounter(types, getType(id)).add(delta, 0);
+        getCounter(directories, dir).add(delta, 0);
+    }
+
+    long getTotalSize() {
+        return total.size.sum();
+    }
+
+    long getTotalCount() {
+        return total.count.sum();
+    }
+
+    /**
+     * @return total sizes by the type prefix of the id.
+     */
+    Map<String, Long> getSizeByType() {
+        return toSizeMap(types);
+    }
+
+    /**
+     * @return total sizes by the directory.
+     */
+    Map<String, Long> getSizeByDirectory() {
+        return toSizeMap(directories);
+    }
+
+    private static Map<String, Long> toSizeMap(Map<String, Counter> counters) {
+        Map<String, Long> sizes = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            if (e.getValue().count.sum() != 0) {
+                sizes.put(e.getKey(), Long.valueOf(e.getValue().size.sum()));
+            }
+        }
+        return sizes;
+    }
+
+    private static Counter getCounter(ConcurrentHashMap<String, Counter> counters,
+            String key) {
+        Counter c = counters.get(key);
+        if (c == null) {
+            Counter newCounter = new Counter();
+            c = counters.putIfAbsent(key, newCounter);
+            if (c == null) {
+                c = newCounter;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return leading letters of the id, e.g. "sm" for "sm123low".
+     */
+    static String getType(String id) {
+        int end = 0;
+        while (end < id.length() && !Character.isDigit(id.charAt(end))) {
+            end++;
+        }
+        return id.substring(0, end);
+    }
+
+    private static class Counter {
+        final LongAdder size = new LongAdder();
+        final LongAdder count = new LongAdder();
+
+        void add(long sizeDelta, int countDelta) {
+            size.add(sizeDelta);
+            count.add(countDelta);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package dareka.processor.impl;
+
+import java.io.File;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A directory which holds caches, typically one for each drive.
+ * A smaller priority value means a faster tier.
+ */
+class CacheVolume {
+    private final File dir;
+    private final long capacity;
+    private final int priority;
+    private final LongAdder used = new LongAdder();
+
+    /**
+     * @param dir root directory of the volume.
+     * @param capacity capacity in bytes. 0 means unlimited.
+     * @param priority tier of the volume. smaller is faster.
+     */
+    CacheVolume(File dir, long capacity, int priority) {
+        this.dir = dir;
+        this.capacity = capacity;
+        this.priority = priority;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    long getUsed() {
+        return used.sum();
+    }
+
+    void addUsed(long delta) {
+        used.add(delta);
+    }
+
+    void clearUsed() {
+        used.reset();
+    }
+
+    /**
+     * @param size size of a cache to be placed.
+     * @return true if the cache fits in the capacity.
+     */
+    boolean hasRoom(long size) {
+        return capacity <= 0 || getUsed() + size <= capacity;
+    }
+
+    /**
+     * @return free bytes in the capacity, or free bytes of the disk if the
+     * capacity is unlimited. It is the weight for placement.
+     */
+    long getRoom() {
+        if (capacity <= 0) {
+            return dir.getUsableSpace();
+        }
+        return Math.max(capacity - getUsed(), 0);
+    }
+
+    boolean contains(File file) {
+        return file.toPath().startsWith(dir.toPath());
+    }
+
+    @Override
+    public String toString() {
+        return dir.getPath();
+    }
+}
@@ -0,0 +1,173 @@
+package dareka.processor.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import dareka.common.Logger;
+
+/**
+ * Set of {@link CacheVolume}s. The cache directory is always the primary
+ * volume, which holds the index and the tmp files.
+ *
+ * <p>
+ * The property cacheVolumes is a list of "priority,capacityMB,path"
+ * separated by ';'. For example, "0,20480,cache;1,0,E:/nicocache" puts a
+ * 20GB fast tier in the cache directory and an unlimited slow tier in
+ * E:/nicocache. Capacity 0 means unlimited. If the cache directory is not
+ * listed, it has priority 0 and unlimited capacity.
+ */
+class CacheVolumes {
+    private static final long MEGA = 1024 * 1024;
+
+    private final CacheVolume primary;
+    private final List<CacheVolume> volumes;
+
+    CacheVolumes(File cacheDir, String spec) {
+        List<CacheVolume> list = new ArrayList<CacheVolume>();
+        // the same directory may be written in different ways, e.g.
+        // "cache", "./cache" or the absolute path.
+        List<File> canonicalDirs = new ArrayList<File>();
+        File canonicalCacheDir = Cache.getCanonicalFile(cacheDir);
+        CacheVolume p = null;
+
+        if (spec != null) {
+            for (String item : spec.split(";")) {
+                if (item.trim().equals("")) {
+                    continue;
+                }
+
+                String[] fields = item.split(",", 3);
+                if (fields.length < 3) {
+                    Logger.warning("invalid cacheVolumes: " + item);
+                    continue;
+                }
+
+                int priority;
+                long capacity;
+                try {
+                    priority = Integer.parseInt(fields[0].trim());
+                    capacity = Long.parseLong(fields[1].trim()) * MEGA;
+                } catch (NumberFormatException e) {
+                    Logger.warning("invalid cacheVolumes: " + item);
+                    continue;
+                }
+
+                File dir = new File(fields[2].trim());
+                File canonicalDir = Cache.getCanonicalFile(dir);
+                if (canonicalDirs.contains(canonicalDir)) {
+                    Logger.warning("duplicated cacheVolumes: " + item);
+                    continue;
+                }
+                canonicalDirs.add(canonicalDir);
+
+                if (canonicalDir.equals(canonicalCacheDir)) {
+                    p = new CacheVolume(cacheDir, capacity, priority);
+                    list.add(p);
+                } else {
+                    // other volumes are recorded in the index by
+                    // absolute paths.
+                    list.add(new CacheVolume(dir.getAbsoluteFile(), capacity,
+                            priority));
+                }
+            }
+        }
+
+        if (p == null) {
+            p = new CacheVolume(cacheDir, 0, 0);
+            list.add(p);
+        }
+
+        Collections.sort(list, new Comparator<CacheVolume>() {
+            public int compare(CacheVolume o1, CacheVolume o2) {
+                return o1.getPriority() - o2.getPriority();
+            }
+        });
+
+        primary = p;
+        volumes = Collections.unmodifiableList(list);
+    }
+
+    CacheVolume getPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return volumes ordered by the priority.
+     */
+    List<CacheVolume> getVolumes() {
+        return volumes;
+    }
+
+    List<File> getDirectories() {
+        List<File> dirs = new ArrayList<File>();
+        for (CacheVolume v : volumes) {
+            dirs.add(v.getDir());
+        }
+        return dirs;
+    }
+
+    boolean isMultiple() {
+        return volumes.size() > 1;
+    }
+
+    /**
+     * @param file file in a volume.
+     * @return volume which contains the file, or null if none.
+     */
+    CacheVolume getVolume(File file) {
+        for (CacheVolume v : volumes) {
+            if (v.contains(file)) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Choose the volume to place a cache. The fastest tier which has room is
+     * chosen, and volumes in the same tier are chosen at random weighted by
+     * their free capacity.
+     *
+     * @param size size of the cache.
+     * @param minPriority volumes whose priority is smaller than this are
+     * not chosen.
+     * @return chosen volume, or null if no volume has room.
+     */
+    CacheVolume choose(long size, int minPriority) {
+        int i = 0;
+        while (i < volumes.size()) {
+            int priority = volumes.get(i).getPriority();
+            List<CacheVolume> tier = new ArrayList<CacheVolume>();
+            long totalRoom = 0;
+            for (; i < volumes.size() && volumes.get(i).getPriority() == priority; i++) {
+                CacheVolume v = volumes.get(i);
+                if (priority >= minPriority && v.hasRoom(size)) {
+                    tier.add(v);
+                    totalRoom += v.getRoom();
+                }
+            }
+
+            if (tier.isEmpty()) {
+                continue;
+            }
+            if (totalRoom <= 0) {
+                return tier.get(0);
+            }
+
+            long r = (long) (ThreadLocalRandom.current().nextDouble() * totalRoom);
+            for (CacheVolume v : tier) {
+                r -= v.getRoom();
+                if (r < 0) {
+                    return v;
+                }
+            }
+            return tier.get(tier.size() - 1);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,621 @@
+package dareka.processor.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+
+/**
+ * Archive of comment responses, instead of a file for each response.
+ *
+ * <p>
+ * Responses are compressed and appended to large segment files, and a new
+ * segment is started when the current one exceeds
+ * commentArchiveSegmentSize. The index from the video id to the snapshots
+ * is kept in memory and in a journal like {@link CacheIndex}. The records
+ * of the segments contain everything in the index, so the index is rebuilt
+ * from them if it is lost, and records appended after the last journal
+ * entry are recovered at opening.
+ *
+ * <p>
+ * The archive can be exported to the layout of
+ * {@link SaveCommentListener}:
+ *
+ * <pre>
+ * java -cp NicoCache.jar dareka.processor.impl.CommentArchive archiveDir outputDir
+ * </pre>
+ *
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>commentArchive: true to save comments into the archive.
+ * <li>commentArchiveSegmentSize: size of a segment in MB.
+ * </ul>
+ */
+public class CommentArchive {
+    private static final String INDEX_FILE = "index";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final int INDEX_MAGIC = 0x4e434349; // "NCCI"
+    private static final int SEGMENT_MAGIC = 0x4e434353; // "NCCS"
+    private static final int VERSION = 1;
+    private static final int RECORD = 'C';
+    private static final long MEGA = 1024 * 1024;
+
+    private static CommentArchive instance;
+
+    private final File dir;
+    private final long segmentSize;
+    private final Map<String, List<Snapshot>> index =
+            new HashMap<String, List<Snapshot>>();
+    /** end of the last record of each segment, by the segment number. */
+    private final Map<Integer, Long> segmentEnds = new HashMap<Integer, Long>();
+    private int currentSegment = 0;
+    private DataOutputStream journal;
+
+    /**
+     * @return the archive in the comment directory, or null if the archive
+     * is disabled or can not be opened.
+     */
+    static synchronized CommentArchive getInstance() {
+        if (instance == null && isEnabled()) {
+            File dir = getDirectory();
+            long segmentSize = Math.max(
+                    Integer.getInteger("commentArchiveSegmentSize", 64)
+                            .intValue(), 1) * MEGA;
+            CommentArchive archive = new CommentArchive(dir, segmentSize);
+            try {
+                archive.open();
+                instance = archive;
+            } catch (IOException e) {
+                Logger.warning("failed to open comment archive: "
+                        + e.toString());
+            }
+        }
+        return instance;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("commentArchive");
+    }
+
+    /**
+     * @return the directory of the archive in the comment directory.
+     */
+    static File getDirectory() {
+        return new File(SaveCommentListener.getOutputDirectory(), "archive");
+    }
+
+    CommentArchive(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Load the index, and recover the records which are not in the index.
+     *
+     * @throws IOException if the directory is not available.
+     */
+    synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: "
+                    + dir.getPath());
+        }
+
+        List<Snapshot> recovered = new ArrayList<Snapshot>();
+        boolean indexLoaded = loadIndex() && isIndexValid();
+        if (!indexLoaded) {
+            index.clear();
+            segmentEnds.clear();
+        }
+        for (int segment : listSegments()) {
+            currentSegment = Math.max(currentSegment, segment);
+            Long end = segmentEnds.get(Integer.valueOf(segment));
+            long from = (indexLoaded && end != null) ? end.longValue() : -1;
+            recovered.addAll(scanSegment(segment, from));
+        }
+        if (currentSegment == 0) {
+            currentSegment = 1;
+        }
+
+        if (!indexLoaded) {
+            writeIndex();
+            Logger.info("comment archive index rebuilt: " + recovered.size());
+        } else {
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getIndexFile(), true)));
+            for (Snapshot s : recovered) {
+                appendJournal(s);
+            }
+            if (!recovered.isEmpty()) {
+                Logger.info("comment archive recovered: " + recovered.size());
+            }
+        }
+    }
+
+    synchronized void close() {
+        CloseUtil.close(journal);
+        journal = null;
+    }
+
+    /**
+     * Append a comment response.
+     *
+     * @param videoId id of the movie, e.g. sm9.
+     * @param name name of the response, which is unique for the movie.
+     * @param time time of the response.
+     * @param xmlFile file of the response, not encoded.
+     * @throws IOException on failure. the archive is not changed.
+     */
+    synchronized void append(String videoId, String name, long time,
+            File xmlFile) throws IOException {
+        int segment = currentSegment;
+        File segmentFile = getSegmentFile(segment);
+        long offset = segmentFile.length();
+        if (offset >= segmentSize) {
+            segment++;
+            segmentFile = getSegmentFile(segment);
+            offset = 0;
+        }
+
+        byte[] record = toRecord(videoId, name, time, compress(xmlFile));
+
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+        try {
+            try {
+                if (offset == 0) {
+                    raf.writeInt(SEGMENT_MAGIC);
+                    raf.writeInt(VERSION);
+                    offset = raf.getFilePointer();
+                }
+                raf.seek(offset);
+                raf.write(record);
+            } catch (IOException e) {
+                // do not leave a broken record.
+                raf.setLength(offset);
+                throw e;
+            }
+        } finally {
+            CloseUtil.close(raf);
+        }
+
+        currentSegment = segment;
+        Snapshot s = new Snapshot(videoId, name, time, segment, offset);
+        addToIndex(s, offset + record.length);
+        appendJournal(s);
+    }
+
+    /**
+     * @param videoId id of the movie, e.g. sm9.
+     * @return snapshots of the movie from the oldest one. empty if none.
+     */
+    synchronized List<Snapshot> getSnapshots(String videoId) {
+        List<Snapshot> snapshots = index.get(videoId);
+        if (snapshots == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Snapshot>(snapshots);
+    }
+
+    /**
+     * @param videoId id of the movie, e.g. sm9.
+     * @return the latest snapshot, or null if none.
+     */
+    synchronized Snapshot getLatest(String videoId) {
+        List<Snapshot> snapshots = index.get(videoId);
+        if (snapshots == null) {
+            return null;
+        }
+        return snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Read the response of the snapshot.
+     *
+     * @param s snapshot from this archive.
+     * @return the response, not encoded.
+     * @throws IOException on failure.
+     */
+    byte[] read(Snapshot s) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(
+                getSegmentFile(s.getSegment()), "r");
+        try {
+            raf.seek(s.getOffset());
+            if (raf.readUnsignedByte() != RECORD) {
+                throw new IOException("broken record: " + s);
+            }
+            raf.readUTF();
+            raf.readUTF();
+            raf.readLong();
+            byte[] data = new byte[raf.readInt()];
+            raf.readFully(data);
+            return decompress(data);
+        } finally {
+            CloseUtil.close(raf);
+        }
+    }
+
+    /**
+     * Write all snapshots as files in the layout of
+     * {@link SaveCommentListener}.
+     *
+     * @param outputDir root of the layout.
+     * @return the number of the files.
+     * @throws IOException on failure.
+     */
+    int export(File outputDir) throws IOException {
+        List<Snapshot> all = new ArrayList<Snapshot>();
+        synchronized (this) {
+            for (List<Snapshot> snapshots : index.values()) {
+                all.addAll(snapshots);
+            }
+        }
+
+        for (Snapshot s : all) {
+            File file = SaveCommentListener.getOutputFile(outputDir,
+                    s.getVideoId(), s.getName());
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("failed to create directory: "
+                        + parent.getPath());
+            }
+
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(read(s));
+            } finally {
+                CloseUtil.close(out);
+            }
+            file.setLastModified(s.getTime());
+        }
+        return all.size();
+    }
+
+    /**
+     * @return false if a segment is shorter than the index, e.g. truncated
+     * by a crash of the file system.
+     */
+    private boolean isIndexValid() {
+        for (Map.Entry<Integer, Long> entry : segmentEnds.entrySet()) {
+            File segmentFile = getSegmentFile(entry.getKey().intValue());
+            if (segmentFile.length() < entry.getValue().longValue()) {
+                Logger.warning("comment archive index is newer than "
+                        + segmentFile.getPath() + ", rebuilt");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean loadIndex() {
+        File indexFile = getIndexFile();
+        if (!indexFile.isFile()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                Logger.info("comment archive index is incompatible, rebuilt");
+                return false;
+            }
+
+            while (true) {
+                int tag;
+                try {
+                    tag = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (tag != RECORD) {
+                    throw new IOException("broken record: " + tag);
+                }
+
+                Snapshot s;
+                long end;
+                try {
+                    s = new Snapshot(in.readUTF(), in.readUTF(),
+                            in.readLong(), in.readInt(), in.readLong());
+                    end = in.readLong();
+                } catch (EOFException e) {
+                    // the last record is not completed because of the crash.
+                    // it is recovered from the segment.
+                    Logger.debug("comment archive index is truncated");
+                    break;
+                }
+                addToIndex(s, end);
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.warning("failed to read comment archive index, rebuilt: "
+                    + e.toString());
+            return false;
+        } finally {
+            CloseUtil.close(in);
+        }
+    }
+
+    /**
+     * Read the records of the segment and add them to the index. A broken
+     * record at the end is truncated.
+     *
+     * @param from offset to start, or -1 to read the whole segment.
+     * @return the snapshots added.
+     */
+    private List<Snapshot> scanSegment(int segment, long from)
+            throws IOException {
+        List<Snapshot> added = new ArrayList<Snapshot>();
+        File segmentFile = getSegmentFile(segment);
+        RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+        try {
+            long offset = from;
+            try {
+                if (offset < 0) {
+                    raf.seek(0);
+                    if (raf.readInt() != SEGMENT_MAGIC
+                            || raf.readInt() != VERSION) {
+                        Logger.warning("unknown comment segment, ignored: "
+                                + segmentFile.getPath());
+                        return added;
+                    }
+                    offset = raf.getFilePointer();
+                }
+
+                while (offset < raf.length()) {
+                    raf.seek(offset);
+                    if (raf.readUnsignedByte() != RECORD) {
+                        throw new EOFException("broken record");
+                    }
+                    String videoId = raf.readUTF();
+                    String name = raf.readUTF();
+                    long time = raf.readLong();
+                    int length = raf.readInt();
+                    long end = raf.getFilePointer() + length;
+                    if (length < 0 || end > raf.length()) {
+                        throw new EOFException("truncated record");
+                    }
+
+                    Snapshot s = new Snapshot(videoId, name, time, segment,
+                            offset);
+                    addToIndex(s, end);
+                    added.add(s);
+                    offset = end;
+                }
+            } catch (EOFException e) {
+                Logger.warning("comment archive is truncated: "
+                        + segmentFile.getPath() + " at " + offset);
+                raf.setLength(Math.max(offset, 0));
+            }
+        } finally {
+            CloseUtil.close(raf);
+        }
+        return added;
+    }
+
+    private void writeIndex() throws IOException {
+        File indexFile = getIndexFile();
+        File tmpFile = new File(dir, INDEX_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            for (List<Snapshot> snapshots : index.values()) {
+                for (Snapshot s : snapshots) {
+                    writeEntry(out, s);
+                }
+            }
+        } finally {
+            CloseUtil.close(out);
+        }
+
+        Cache.moveFile(tmpFile, indexFile);
+        journal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile, true)));
+    }
+
+    private void appendJournal(Snapshot s) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            writeEntry(journal, s);
+            journal.flush();
+        } catch (IOException e) {
+            // the record is recovered from the segment at the next start.
+            Logger.warning("failed to write comment archive index: "
+                    + e.toString());
+            CloseUtil.close(journal);
+            journal = null;
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, Snapshot s)
+            throws IOException {
+        out.writeByte(RECORD);
+        out.writeUTF(s.getVideoId());
+        out.writeUTF(s.getName());
+        out.writeLong(s.getTime());
+        out.writeInt(s.getSegment());
+        out.writeLong(s.getOffset());
+        out.writeLong(segmentEnds.get(Integer.valueOf(s.getSegment()))
+                .longValue());
+    }
+
+    private void addToIndex(Snapshot s, long end) {
+        List<Snapshot> snapshots = index.get(s.getVideoId());
+        if (snapshots == null) {
+            snapshots = new ArrayList<Snapshot>(1);
+            index.put(s.getVideoId(), snapshots);
+        }
+        snapshots.add(s);
+
+        Integer segment = Integer.valueOf(s.getSegment());
+        Long current = segmentEnds.get(segment);
+        if (current == null || current.longValue() < end) {
+            segmentEnds.put(segment, Long.valueOf(end));
+        }
+    }
+
+    private List<Integer> listSegments() {
+        List<Integer> segments = new ArrayList<Integer>();
+        String[] names = dir.list();
+        if (names == null) {
+            return segments;
+        }
+
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                try {
+                    segments.add(Integer.valueOf(
+                            name.substring(SEGMENT_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File getIndexFile() {
+        return new File(dir, INDEX_FILE);
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(dir, String.format("%s%05d", SEGMENT_PREFIX,
+                Integer.valueOf(segment)));
+    }
+
+    private static byte[] toRecord(String videoId, String name, long time,
+            byte[] data) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeByte(RECORD);
+        out.writeUTF(videoId);
+        out.writeUTF(name);
+        out.writeLong(time);
+        out.writeInt(data.length);
+        out.write(data);
+        out.close();
+        return bout.toByteArray();
+    }
+
+    private static byte[] compress(File file) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(bout);
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            out.close();
+        } finally {
+            CloseUtil.close(in);
+        }
+        return bout.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length * 4);
+        InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data));
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                bout.write(buf, 0, len);
+            }
+        } finally {
+            CloseUtil.close(in);
+        }
+        return bout.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CommentArchive archiveDir outputDir");
+            System.exit(1);
+        }
+
+        CommentArchive archive = new CommentArchive(new File(args[0]),
+                Long.MAX_VALUE);
+        archive.open();
+        try {
+            int count = archive.export(new File(args[1]));
+            System.out.println(String.format("%,d files exported",
+                    Integer.valueOf(count)));
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * A comment response in the archive.
+     */
+    static class Snapshot {
+        private final String videoId;
+        private final String name;
+        private final long time;
+        private final int segment;
+        private final long offset;
+
+        Snapshot(String videoId, String name, long time, int segment,
+                long offset) {
+            this.videoId = videoId;
+            this.name = name;
+            this.time = time;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        String getVideoId() {
+            return videoId;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        int getSegment() {
+            return segment;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return videoId + "-" + name + "@" + segment + ":" + offset;
+        }
+    }
+}
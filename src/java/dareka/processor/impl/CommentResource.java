@@ -0,0 +1,482 @@
+package dareka.processor.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dareka.common.Config;
+import dareka.common.HttpIOException;
+import dareka.common.Logger;
+import dareka.processor.HttpRequestHeader;
+import dareka.processor.HttpResponseHeader;
+import dareka.processor.HttpUtil;
+import dareka.processor.Resource;
+import dareka.processor.StringResource;
+import dareka.processor.URLResource;
+
+/**
+ * Response of the comment API which can be answered from the stored
+ * comments, for {@link SaveCommentProcessor}.
+ *
+ * <p>
+ * The request is relayed to the message server on another thread. In the
+ * fallback mode, if the response does not arrive within
+ * commentFallbackTimeout or it is an error, the latest stored comments of
+ * the requested threads are sent instead. The relay continues in the
+ * background, so its response is still saved. In the preferLocal mode, the
+ * stored comments are sent immediately, and the request is relayed in the
+ * background only to save the new comments. If any requested thread is not
+ * stored, both modes wait for the message server as usual.
+ *
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>commentFallback: off, fallback or preferLocal.
+ * <li>commentFallbackTimeout: latency budget of the message server in
+ * milliseconds.
+ * </ul>
+ */
+class CommentResource extends Resource {
+    static final String MODE_FALLBACK = "fallback";
+    static final String MODE_PREFER_LOCAL = "preferLocal";
+
+    /** a thread or thread_leaves element of the request. */
+    private static final Pattern THREAD_PATTERN = Pattern.compile(
+            "<thread(_leaves)?\\s[^>]*>(?:([^<]*)</thread_leaves>)?");
+    /** the content of thread_leaves, e.g. "0-10:100,1000". */
+    private static final Pattern LEAVES_PATTERN =
+            Pattern.compile(",(\\d+)$");
+    private static final int MAX_RELAYS = 8;
+
+    private static final ThreadPoolExecutor RELAY_EXECUTOR =
+            new ThreadPoolExecutor(0, MAX_RELAYS, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r,
+                                    "CommentRelay-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+    private final URLResource upstream;
+    private final SaveCommentListener listener;
+    private final String mode;
+
+    /**
+     * @param upstream resource of the message server.
+     * @param listener listener which is added to upstream.
+     * @param mode {@link #MODE_FALLBACK} or {@link #MODE_PREFER_LOCAL}.
+     */
+    CommentResource(URLResource upstream, SaveCommentListener listener,
+            String mode) {
+        this.upstream = upstream;
+        this.listener = listener;
+        this.mode = mode;
+    }
+
+    /**
+     * @return the mode of the fallback, or null if it is off.
+     */
+    static String getMode() {
+        String mode = System.getProperty("commentFallback");
+        if (MODE_FALLBACK.equals(mode) || MODE_PREFER_LOCAL.equals(mode)) {
+            return mode;
+        }
+        return null;
+    }
+
+    @Override
+    public void stopTransfer() {
+        super.stopTransfer();
+        upstream.stopTransfer();
+    }
+
+    @Override
+    protected boolean endEnsuredTransferTo(Socket receiver,
+            HttpRequestHeader requestHeader, Config config)
+            throws IOException {
+        long contentLength = requestHeader.getContentLength();
+        if (contentLength < 0) {
+            // the request can not be replayed.
+            return upstream.transferTo(receiver, requestHeader, config);
+        }
+
+        ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+        HttpUtil.sendBody(requestBody, receiver.getInputStream(),
+                contentLength);
+        byte[] body = requestBody.toByteArray();
+        String request = new String(body, "UTF-8");
+        List<ThreadRequest> threads = ThreadRequest.parse(request);
+        String thread = ThreadRequest.toString(threads);
+
+        byte[] local = getLocalComments(threads);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        Relay relay = new Relay(body, response, threads, requestHeader, config);
+
+        if (local != null && MODE_PREFER_LOCAL.equals(mode)) {
+            try {
+                RELAY_EXECUTOR.submit(relay);
+            } catch (RejectedExecutionException e) {
+                Logger.debugWithThread("comment refreshing skipped: " + thread);
+            }
+            Logger.debugWithThread("comment served locally: " + thread);
+            return sendLocal(receiver, requestHeader, config, local);
+        }
+
+        Future<Boolean> future;
+        try {
+            future = RELAY_EXECUTOR.submit(relay);
+        } catch (RejectedExecutionException e) {
+            // too many relays are waiting. relay on this thread.
+            return sendResponse(receiver, relay.call().booleanValue(),
+                    response);
+        }
+
+        try {
+            boolean canContinue;
+            if (local == null) {
+                canContinue = future.get().booleanValue();
+            } else {
+                canContinue = future.get(getTimeout(), TimeUnit.MILLISECONDS)
+                        .booleanValue();
+                if (!isSuccess(response)) {
+                    Logger.info("comment server failed, served locally: "
+                            + thread);
+                    return sendLocal(receiver, requestHeader, config, local);
+                }
+            }
+            return sendResponse(receiver, canContinue, response);
+        } catch (TimeoutException e) {
+            Logger.info("comment server is slow, served locally: " + thread);
+            return sendLocal(receiver, requestHeader, config, local);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw new HttpIOException("interrupted");
+        } catch (ExecutionException e) {
+            if (local != null) {
+                Logger.info("comment server failed, served locally: "
+                        + thread);
+                return sendLocal(receiver, requestHeader, config, local);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new HttpIOException(cause.toString());
+        }
+    }
+
+    /**
+     * Relay the request to the message server, and remember the movie of
+     * the threads from its response.
+     */
+    private class Relay implements Callable<Boolean> {
+        private final byte[] body;
+        private final ByteArrayOutputStream response;
+        private final List<ThreadRequest> threads;
+        private final HttpRequestHeader requestHeader;
+        private final Config config;
+
+        Relay(byte[] body, ByteArrayOutputStream response,
+                List<ThreadRequest> threads, HttpRequestHeader requestHeader,
+                Config config) {
+            this.body = body;
+            this.response = response;
+            this.threads = threads;
+            this.requestHeader = requestHeader;
+            this.config = config;
+        }
+
+        public Boolean call() throws IOException {
+            boolean canContinue;
+            try {
+                canContinue = upstream.transferTo(
+                        new ByteArrayInputStream(body), response,
+                        requestHeader, config);
+            } finally {
+                // unlike Resource#transferTo(Socket, ...), this transferTo()
+                // does not ensure the end event on failure. It does nothing
+                // if the event is already fired.
+                listener.onTransferEnd(false);
+            }
+
+            String videoId = listener.getVideoId();
+            if (videoId != null) {
+                for (ThreadRequest t : threads) {
+                    CommentThreads.getInstance().put(t.thread, videoId);
+                }
+            }
+            return Boolean.valueOf(canContinue);
+        }
+    }
+
+    /**
+     * A thread requested by a thread or thread_leaves element. The same
+     * thread and fork requested by some elements is merged into one.
+     */
+    private static class ThreadRequest {
+        final String thread;
+        final String fork;
+        /** the number of the latest chats, or 0 for all. */
+        int latest;
+
+        ThreadRequest(String thread, String fork, int latest) {
+            this.thread = thread;
+            this.fork = fork;
+            this.latest = latest;
+        }
+
+        /**
+         * @param request body of the request.
+         * @return the requested threads in the order of the request.
+         */
+        static List<ThreadRequest> parse(String request) {
+            Map<String, ThreadRequest> threads =
+                    new LinkedHashMap<String, ThreadRequest>();
+            Matcher m = THREAD_PATTERN.matcher(request);
+            while (m.find()) {
+                Map<String, String> attributes =
+                        CommentStore.getAttributes(m.group());
+                String thread = attributes.get("thread");
+                if (thread == null) {
+                    continue;
+                }
+                String fork = attributes.get("fork");
+                if (fork == null) {
+                    fork = "";
+                }
+
+                String count;
+                if (m.group(1) == null) {
+                    count = attributes.get("res_from");
+                    if (count != null && count.startsWith("-")) {
+                        count = count.substring(1);
+                    } else {
+                        // chats after the number are not supported here.
+                        count = null;
+                    }
+                } else {
+                    // the chats by leaves are not kept, so answer the
+                    // latest ones up to the total.
+                    Matcher leaves = LEAVES_PATTERN.matcher(
+                            (m.group(2) == null) ? "" : m.group(2).trim());
+                    count = leaves.find() ? leaves.group(1) : null;
+                }
+                int latest;
+                try {
+                    latest = (count == null) ? 0 : Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    latest = 0;
+                }
+
+                String key = thread + ":" + fork;
+                ThreadRequest t = threads.get(key);
+                if (t == null) {
+                    threads.put(key, new ThreadRequest(thread, fork, latest));
+                } else if (t.latest > 0) {
+                    t.latest = (latest == 0) ? 0 : Math.max(t.latest, latest);
+                }
+            }
+            return new ArrayList<ThreadRequest>(threads.values());
+        }
+
+        /**
+         * @return the threads for logs, e.g. "1,1:1".
+         */
+        static String toString(List<ThreadRequest> threads) {
+            StringBuilder sb = new StringBuilder();
+            for (ThreadRequest t : threads) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(t.thread);
+                if (t.fork.length() > 0) {
+                    sb.append(':').append(t.fork);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private static long getTimeout() {
+        return Integer.getInteger("commentFallbackTimeout", 3000).intValue();
+    }
+
+    private boolean sendResponse(Socket receiver, boolean canContinue,
+            ByteArrayOutputStream response) throws IOException {
+        if (response.size() == 0) {
+            throw new HttpIOException("no response from comment server");
+        }
+        response.writeTo(receiver.getOutputStream());
+        return canContinue;
+    }
+
+    private boolean sendLocal(Socket receiver, HttpRequestHeader requestHeader,
+            Config config, byte[] local) throws IOException {
+        StringResource r = new StringResource(local);
+        r.setResponseHeader("Content-Type", "text/xml; charset=UTF-8");
+        r.addNoCacheResponseHeaders();
+        return r.transferTo(receiver, requestHeader, config);
+    }
+
+    private static boolean isSuccess(ByteArrayOutputStream response) {
+        if (response.size() == 0) {
+            return false;
+        }
+
+        try {
+            HttpResponseHeader header = new HttpResponseHeader(
+                    new ByteArrayInputStream(response.toByteArray()));
+            return header.getStatusCode() / 100 == 2;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param threads the requested threads.
+     * @return the latest stored comments of all threads, or null if any of
+     * them is not stored.
+     */
+    private static byte[] getLocalComments(List<ThreadRequest> threads) {
+        if (threads.isEmpty()) {
+            return null;
+        }
+        String videoId = null;
+        for (ThreadRequest t : threads) {
+            String v = CommentThreads.getInstance().getVideoId(t.thread);
+            if (v == null || (videoId != null && !videoId.equals(v))) {
+                return null;
+            }
+            videoId = v;
+        }
+
+        Map<ThreadRequest, List<String>> found =
+                new HashMap<ThreadRequest, List<String>>();
+        try {
+            CommentStore store = CommentStore.getInstance();
+            if (store != null) {
+                for (ThreadRequest t : threads) {
+                    List<String> elements =
+                            store.build(videoId, t.thread, t.fork, t.latest);
+                    if (elements != null) {
+                        found.put(t, elements);
+                    }
+                }
+                return toDocument(threads, found);
+            }
+
+            // a movie has some threads, e.g. the one of its owner, and a
+            // response may not have all of them. use the latest response of
+            // each requested thread.
+            CommentArchive archive = CommentArchive.getInstance();
+            if (archive != null) {
+                List<CommentArchive.Snapshot> snapshots =
+                        archive.getSnapshots(videoId);
+                for (int i = snapshots.size() - 1;
+                        i >= 0 && found.size() < threads.size(); i--) {
+                    select(archive.read(snapshots.get(i)), threads, found);
+                }
+                return toDocument(threads, found);
+            }
+
+            for (File file : getFiles(videoId)) {
+                if (found.size() == threads.size()) {
+                    break;
+                }
+                select(Files.readAllBytes(file.toPath()), threads, found);
+            }
+            return toDocument(threads, found);
+        } catch (IOException e) {
+            Logger.warning("failed to read stored comments: " + e.toString());
+            return null;
+        }
+    }
+
+    private static void select(byte[] xml, List<ThreadRequest> threads,
+            Map<ThreadRequest, List<String>> found) {
+        for (ThreadRequest t : threads) {
+            if (!found.containsKey(t)) {
+                List<String> elements =
+                        CommentStore.select(xml, t.thread, t.fork, t.latest);
+                if (elements != null) {
+                    found.put(t, elements);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the document of all threads, or null if any of them is not
+     * found.
+     */
+    private static byte[] toDocument(List<ThreadRequest> threads,
+            Map<ThreadRequest, List<String>> found) {
+        // the elements shared by the threads, e.g. view_counter, are
+        // written only once.
+        Set<String> elements = new LinkedHashSet<String>();
+        for (ThreadRequest t : threads) {
+            List<String> e = found.get(t);
+            if (e == null) {
+                return null;
+            }
+            elements.addAll(e);
+        }
+        return CommentStore.toDocument(elements);
+    }
+
+    /**
+     * @return the saved files of the movie from the latest one.
+     */
+    private static List<File> getFiles(String videoId) {
+        File dir = SaveCommentListener.getOutputFile(
+                SaveCommentListener.getOutputDirectory(), videoId, "")
+                .getParentFile();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+
+        List<File> found = new ArrayList<File>();
+        String prefix = videoId + "-";
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(".xml")) {
+                found.add(file);
+            }
+        }
+        Collections.sort(found, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return Long.compare(o2.lastModified(), o1.lastModified());
+            }
+        });
+        return found;
+    }
+}
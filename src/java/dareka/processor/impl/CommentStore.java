@@ -0,0 +1,552 @@
+package dareka.processor.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+
+/**
+ * Store of comments which keeps each chat only once.
+ *
+ * <p>
+ * The same comments are returned every time the movie is watched, so
+ * saving each response wastes the disk. This store splits a response into
+ * chat elements and the other elements, such as thread and view_counter.
+ * Only the chats which are not stored yet are appended to the file of the
+ * movie, with the other elements of the response, and nothing is written if
+ * there is no new chat. A chat is identified by its thread, fork and no
+ * attributes.
+ *
+ * <p>
+ * A document is built on demand from the latest other elements of each
+ * requested thread and its stored chats, which are sorted by no. It
+ * contains all chats of the thread, or the latest ones.
+ *
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>commentStore: true to save comments into this store. It takes
+ * precedence over commentArchive.
+ * </ul>
+ */
+class CommentStore {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4e434344; // "NCCD"
+    private static final int VERSION = 1;
+    private static final int RECORD = 'R';
+    /**
+     * The file of a movie is "." + videoId + SUFFIX. The leading '.' keeps
+     * it from being treated as a cache.
+     */
+    private static final String SUFFIX = ".chats";
+    /** the number of movies whose chat keys are kept in memory. */
+    private static final int MAX_LOADED = 256;
+
+    /** an element in packet, which does not contain any elements. */
+    private static final Pattern ELEMENT_PATTERN = Pattern.compile(
+            "<([a-z_]+)\\b[^>]*?(?:/>|>.*?</\\1>)", Pattern.DOTALL);
+    private static final Pattern ATTRIBUTE_PATTERN =
+            Pattern.compile("\\s([a-z_]+)=\"([^\"]*)\"");
+
+    private static CommentStore instance;
+
+    private final File dir;
+    /** keys of the stored chats by the movie, in the LRU order. */
+    private final Map<String, Set<String>> loaded =
+            new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Set<String>> eldest) {
+                    return size() > MAX_LOADED;
+                }
+            };
+
+    /**
+     * @return the store in the comment directory, or null if disabled.
+     */
+    static synchronized CommentStore getInstance() {
+        if (instance == null && isEnabled()) {
+            instance = new CommentStore(getDirectory());
+        }
+        return instance;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("commentStore");
+    }
+
+    /**
+     * @return the directory of the store in the comment directory.
+     */
+    static File getDirectory() {
+        return new File(SaveCommentListener.getOutputDirectory(), "chats");
+    }
+
+    CommentStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Add the chats of the response which are not stored yet.
+     *
+     * @param videoId id of the movie, e.g. sm9.
+     * @param time time of the response.
+     * @param xmlFile file of the response, not encoded.
+     * @return the number of the added chats.
+     * @throws IOException on failure.
+     */
+    synchronized int add(String videoId, long time, File xmlFile)
+            throws IOException {
+        Packet packet = Packet.parse(readText(xmlFile));
+        Set<String> keys = getKeys(videoId);
+
+        List<Chat> newChats = new ArrayList<Chat>();
+        for (Chat chat : packet.chats) {
+            if (!keys.contains(chat.key)) {
+                newChats.add(chat);
+            }
+        }
+
+        File file = getFile(videoId);
+        if (newChats.isEmpty() && file.length() > 0) {
+            return 0;
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("failed to create directory: "
+                    + parent.getPath());
+        }
+
+        boolean isNew = file.length() == 0;
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(file, true));
+        try {
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            writeRecord(out, time, packet.others, newChats);
+        } finally {
+            CloseUtil.close(out);
+        }
+
+        for (Chat chat : newChats) {
+            keys.add(chat.key);
+        }
+        return newChats.size();
+    }
+
+    /**
+     * Collect the elements of the thread from the stored chats.
+     *
+     * @param videoId id of the movie, e.g. sm9.
+     * @param thread the thread of the chats.
+     * @param fork the fork of the chats, "" for the normal chats.
+     * @param latest the number of the latest chats, or 0 for all chats.
+     * @return the elements for {@link #toDocument(Collection)}, or null if
+     * the thread is not stored.
+     * @throws IOException on failure.
+     */
+    synchronized List<String> build(String videoId, String thread,
+            String fork, int latest) throws IOException {
+        List<String> others = null;
+        // the chats sorted by no.
+        TreeMap<Long, String> chats = new TreeMap<Long, String>();
+
+        List<Record> records = new ArrayList<Record>();
+        readRecords(videoId, records);
+        for (Record r : records) {
+            if (containsThread(r.others, thread, fork)) {
+                others = r.others;
+            }
+            for (Chat chat : r.chats) {
+                if (chat.isOf(thread, fork)) {
+                    chats.put(Long.valueOf(chat.no), chat.xml);
+                }
+            }
+        }
+        if (others == null) {
+            return null;
+        }
+        return getElements(others, thread, fork, chats, latest);
+    }
+
+    /**
+     * Collect the elements of the thread from a stored response.
+     *
+     * @param xml the response, not encoded.
+     * @param thread the thread of the chats.
+     * @param fork the fork of the chats, "" for the normal chats.
+     * @param latest the number of the latest chats, or 0 for all chats.
+     * @return the elements for {@link #toDocument(Collection)}, or null if
+     * the response does not have the thread.
+     */
+    static List<String> select(byte[] xml, String thread, String fork,
+            int latest) {
+        Packet packet = Packet.parse(new String(xml, UTF_8));
+        if (!containsThread(packet.others, thread, fork)) {
+            return null;
+        }
+
+        TreeMap<Long, String> chats = new TreeMap<Long, String>();
+        for (Chat chat : packet.chats) {
+            if (chat.isOf(thread, fork)) {
+                chats.put(Long.valueOf(chat.no), chat.xml);
+            }
+        }
+        return getElements(packet.others, thread, fork, chats, latest);
+    }
+
+    /**
+     * @param elements elements of the threads. the same element, such as
+     * view_counter, should be given only once.
+     * @return the document in UTF-8.
+     */
+    static byte[] toDocument(Collection<String> elements) {
+        StringBuilder doc = new StringBuilder();
+        doc.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        doc.append("<packet>");
+        for (String element : elements) {
+            doc.append(element);
+        }
+        doc.append("</packet>");
+        return doc.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @param element an element of a response or a request.
+     * @return the attributes of the element.
+     */
+    static Map<String, String> getAttributes(String element) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        int tagEnd = element.indexOf('>');
+        Matcher m = ATTRIBUTE_PATTERN.matcher(element);
+        m.region(0, (tagEnd == -1) ? element.length() : tagEnd);
+        while (m.find()) {
+            attributes.put(m.group(1), m.group(2));
+        }
+        return attributes;
+    }
+
+    private static boolean containsThread(List<String> others, String thread,
+            String fork) {
+        for (String other : others) {
+            if (other.startsWith("<thread ")
+                    && isOf(getAttributes(other), true, thread, fork)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param strictFork true if no fork attribute means the normal chats,
+     * false if it means any fork.
+     * @return true if the element is not of any other thread.
+     */
+    private static boolean isOf(Map<String, String> attributes,
+            boolean strictFork, String thread, String fork) {
+        String t = attributes.get("thread");
+        if (t == null) {
+            return !strictFork;
+        }
+        if (!t.equals(thread)) {
+            return false;
+        }
+        String f = attributes.get("fork");
+        if (f == null) {
+            return !strictFork || fork.length() == 0;
+        }
+        return f.equals(fork);
+    }
+
+    private static List<String> getElements(List<String> others,
+            String thread, String fork, TreeMap<Long, String> chats,
+            int latest) {
+        List<String> elements = new ArrayList<String>();
+        for (String other : others) {
+            // e.g. the thread and leaf elements of the other threads.
+            if (isOf(getAttributes(other), other.startsWith("<thread "),
+                    thread, fork)) {
+                elements.add(other);
+            }
+        }
+        int skip = (latest > 0) ? Math.max(chats.size() - latest, 0) : 0;
+        for (String chat : chats.values()) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            elements.add(chat);
+        }
+        return elements;
+    }
+
+    /**
+     * @param videoId id of the movie, e.g. sm9.
+     * @return true if something is stored.
+     */
+    boolean contains(String videoId) {
+        return getFile(videoId).isFile();
+    }
+
+    private Set<String> getKeys(String videoId) throws IOException {
+        Set<String> keys = loaded.get(videoId);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            List<Record> records = new ArrayList<Record>();
+            long length = readRecords(videoId, records);
+            for (Record r : records) {
+                for (Chat chat : r.chats) {
+                    keys.add(chat.key);
+                }
+            }
+
+            // records must not be appended after a broken one.
+            File file = getFile(videoId);
+            if (file.length() > length) {
+                truncate(file, length);
+            }
+            loaded.put(videoId, keys);
+        }
+        return keys;
+    }
+
+    private File getFile(String videoId) {
+        File parent = SaveCommentListener.getOutputFile(dir, videoId, "")
+                .getParentFile();
+        return new File(parent, "." + videoId + SUFFIX);
+    }
+
+    /**
+     * @param records list to add the records.
+     * @return the length of the valid part of the file.
+     */
+    private long readRecords(String videoId, List<Record> records)
+            throws IOException {
+        File file = getFile(videoId);
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        long length = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown file: " + file.getPath());
+            }
+            length = 8;
+
+            while (true) {
+                int tag;
+                try {
+                    tag = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (tag != RECORD) {
+                    throw new IOException("broken record: " + tag);
+                }
+
+                try {
+                    Record r = readRecord(in);
+                    records.add(r);
+                    length += 1 + 8 + 4 + r.compressedLength;
+                } catch (EOFException e) {
+                    // the last record is not completed because of the crash.
+                    Logger.debug("comment store is truncated: "
+                            + file.getPath());
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // the header is not completed.
+        } finally {
+            CloseUtil.close(in);
+        }
+        return length;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            CloseUtil.close(raf);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, long time,
+            List<String> others, List<Chat> chats) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream data =
+                new DataOutputStream(new DeflaterOutputStream(bout));
+        data.writeInt(others.size());
+        for (String other : others) {
+            writeString(data, other);
+        }
+        data.writeInt(chats.size());
+        for (Chat chat : chats) {
+            writeString(data, chat.thread);
+            writeString(data, chat.fork);
+            data.writeLong(chat.no);
+            writeString(data, chat.xml);
+        }
+        data.close();
+
+        out.writeByte(RECORD);
+        out.writeLong(time);
+        out.writeInt(bout.size());
+        bout.writeTo(out);
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        Record r = new Record();
+        in.readLong(); // time
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+        r.compressedLength = compressed.length;
+
+        DataInputStream data = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(compressed)));
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            r.others.add(readString(data));
+        }
+        count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            String thread = readString(data);
+            String fork = readString(data);
+            long no = data.readLong();
+            r.chats.add(new Chat(thread, fork, no, readString(data)));
+        }
+        return r;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static String readText(File file) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                bout.write(buf, 0, len);
+            }
+        } finally {
+            CloseUtil.close(in);
+        }
+        return new String(bout.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Elements of a response.
+     */
+    private static class Packet {
+        final List<String> others = new ArrayList<String>();
+        final List<Chat> chats = new ArrayList<Chat>();
+
+        static Packet parse(String xml) {
+            Packet packet = new Packet();
+            int start = xml.indexOf("<packet>");
+            int end = xml.lastIndexOf("</packet>");
+            if (start == -1 || end == -1) {
+                return packet;
+            }
+
+            Matcher m = ELEMENT_PATTERN.matcher(xml);
+            m.region(start + "<packet>".length(), end);
+            while (m.find()) {
+                String element = m.group();
+                if (!m.group(1).equals("chat")) {
+                    packet.others.add(element);
+                    continue;
+                }
+
+                Map<String, String> attributes = getAttributes(element);
+                String no = attributes.get("no");
+                if (no == null) {
+                    continue;
+                }
+                try {
+                    packet.chats.add(new Chat(attributes.get("thread"),
+                            attributes.get("fork"), Long.parseLong(no),
+                            element));
+                } catch (NumberFormatException e) {
+                    Logger.debug("invalid chat: " + element);
+                }
+            }
+            return packet;
+        }
+    }
+
+    private static class Chat {
+        final String thread;
+        final String fork;
+        final long no;
+        final String xml;
+        final String key;
+
+        Chat(String thread, String fork, long no, String xml) {
+            this.thread = (thread == null) ? "" : thread;
+            this.fork = (fork == null) ? "" : fork;
+            this.no = no;
+            this.xml = xml;
+            this.key = getThreadKey() + ":" + no;
+        }
+
+        String getThreadKey() {
+            return thread + ":" + fork;
+        }
+
+        boolean isOf(String thread, String fork) {
+            return this.thread.equals(thread) && this.fork.equals(fork);
+        }
+    }
+
+    private static class Record {
+        int compressedLength;
+        final List<String> others = new ArrayList<String>();
+        final List<Chat> chats = new ArrayList<Chat>();
+    }
+}
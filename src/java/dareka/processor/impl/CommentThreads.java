@@ -0,0 +1,111 @@
+package dareka.processor.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+
+/**
+ * Map from the thread of comments to the movie, so that the stored comments
+ * can be found by a request which contains only the thread.
+ *
+ * <p>
+ * Each new pair is appended to a text file as a line "thread videoId" in
+ * the comment directory, and a later line overrides earlier ones.
+ */
+class CommentThreads {
+    private static final CommentThreads SINGLETON_INSTANCE =
+            new CommentThreads();
+    /** The leading '.' keeps it from being treated as a cache. */
+    private static final String THREADS_FILE = ".threads";
+
+    /** video ids by the thread, or null if not loaded yet. */
+    private Map<String, String> threads;
+
+    static CommentThreads getInstance() {
+        return SINGLETON_INSTANCE;
+    }
+
+    private CommentThreads() {
+        // singleton
+    }
+
+    /**
+     * @param thread the thread of comments.
+     * @return id of the movie, e.g. sm9, or null if unknown.
+     */
+    synchronized String getVideoId(String thread) {
+        return getThreads().get(thread);
+    }
+
+    /**
+     * Remember the movie of the thread.
+     *
+     * @param thread the thread of comments.
+     * @param videoId id of the movie, e.g. sm9.
+     */
+    synchronized void put(String thread, String videoId) {
+        if (videoId.equals(getThreads().put(thread, videoId))) {
+            return;
+        }
+
+        File file = getFile();
+        OutputStream out = null;
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("failed to create directory: "
+                        + dir.getPath());
+            }
+            out = new FileOutputStream(file, true);
+            out.write((thread + " " + videoId + "\n").getBytes("US-ASCII"));
+        } catch (IOException e) {
+            Logger.warning("failed to write comment threads: "
+                    + e.toString());
+        } finally {
+            CloseUtil.close(out);
+        }
+    }
+
+    private Map<String, String> getThreads() {
+        if (threads != null) {
+            return threads;
+        }
+
+        threads = new HashMap<String, String>();
+        File file = getFile();
+        if (!file.isFile()) {
+            return threads;
+        }
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "US-ASCII"));
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] pair = line.split(" ");
+                if (pair.length == 2) {
+                    threads.put(pair[0], pair[1]);
+                }
+            }
+        } catch (IOException e) {
+            Logger.warning("failed to read comment threads: " + e.toString());
+        } finally {
+            CloseUtil.close(r);
+        }
+        return threads;
+    }
+
+    private File getFile() {
+        return new File(SaveCommentListener.getOutputDirectory(), THREADS_FILE);
+    }
+}
@@ -0,0 +1,229 @@
+package dareka.processor.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+import dareka.processor.ContentDecoder;
+import dareka.processor.HttpHeader;
+
+/**
+ * Write a comment response to a file for {@link SaveCommentListener}.
+ *
+ * <p>
+ * The relay thread only hands chunks of the response over, and a dedicated
+ * thread inflates them into the tmp file of the final name, then renames it
+ * to the final name at the end. So the relay never waits for the disk, and
+ * the response is written only once.
+ *
+ * <p>
+ * If commentStore is true, the new chats in the file are added to
+ * {@link CommentStore}. Otherwise, if commentArchive is true, the file is
+ * appended to {@link CommentArchive} instead of being renamed.
+ *
+ * <p>
+ * All writers share one thread, so the chunks of a response are written in
+ * order. If the disk can not keep up and too many bytes are waiting, the
+ * response is dropped instead of consuming the heap.
+ */
+class CommentWriter {
+    private static final long MAX_PENDING_BYTES = 32 * 1024 * 1024;
+
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CommentWriter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private static final AtomicLong pendingBytes = new AtomicLong();
+
+    static {
+        ((ThreadPoolExecutor) EXECUTOR).allowCoreThreadTimeOut(true);
+    }
+
+    private final File file;
+    private final File tmpFile;
+    private final String videoId;
+    private final String name;
+    private final long time = System.currentTimeMillis();
+    private final boolean gzip;
+    /** set by the relay thread when the response is dropped. */
+    private boolean dropped = false;
+
+    // accessed only by the writer thread
+    private OutputStream out;
+    private ContentDecoder decoder;
+    private boolean failed = false;
+
+    /**
+     * @param file the final file.
+     * @param videoId id of the movie, e.g. sm9.
+     * @param name name of the response.
+     * @param gzip true if the response is gzip encoded.
+     */
+    CommentWriter(File file, String videoId, String name, boolean gzip) {
+        this.file = file;
+        // do not create the directories of the files if they are not used.
+        if (CommentStore.isEnabled()) {
+            this.tmpFile = new File(CommentStore.getDirectory(),
+                    file.getName() + ".tmp");
+        } else if (CommentArchive.isEnabled()) {
+            this.tmpFile = new File(CommentArchive.getDirectory(),
+                    file.getName() + ".tmp");
+        } else {
+            this.tmpFile =
+                    new File(file.getParentFile(), file.getName() + ".tmp");
+        }
+        this.videoId = videoId;
+        this.name = name;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Write a chunk of the response later. The chunk is copied.
+     *
+     * @param buf chunk of the response, as it is transferred.
+     * @param off offset of the chunk.
+     * @param len length of the chunk.
+     */
+    void write(byte[] buf, int off, int len) {
+        if (dropped) {
+            return;
+        }
+
+        if (pendingBytes.addAndGet(len) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-len);
+            Logger.warning("comment writing is too slow, dropped: "
+                    + file.getPath());
+            dropped = true;
+            EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    abort();
+                }
+            });
+            return;
+        }
+
+        final byte[] chunk = new byte[len];
+        System.arraycopy(buf, off, chunk, 0, len);
+        EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    doWrite(chunk);
+                } finally {
+                    pendingBytes.addAndGet(-chunk.length);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finish writing later, and the file appears under the final name.
+     */
+    void finish() {
+        if (dropped) {
+            return;
+        }
+
+        EXECUTOR.execute(new Runnable() {
+            public void run() {
+                doFinish();
+            }
+        });
+    }
+
+    /**
+     * Discard the response later.
+     */
+    void cancel() {
+        if (dropped) {
+            return;
+        }
+
+        dropped = true;
+        EXECUTOR.execute(new Runnable() {
+            public void run() {
+                abort();
+            }
+        });
+    }
+
+    private void doWrite(byte[] chunk) {
+        if (failed) {
+            return;
+        }
+
+        try {
+            if (out == null) {
+                File dir = tmpFile.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("failed to create directory: "
+                            + dir.getPath());
+                }
+                out = new FileOutputStream(tmpFile);
+                decoder = new ContentDecoder(
+                        gzip ? HttpHeader.CONTENT_ENCODING_GZIP : null, null);
+            }
+
+            decoder.decode(chunk, 0, chunk.length, out, null);
+        } catch (IOException e) {
+            Logger.warning("failed to write comment: " + e.toString());
+            abort();
+        }
+    }
+
+    private void doFinish() {
+        if (failed || out == null) {
+            return;
+        }
+
+        try {
+            out.close();
+            out = null;
+            decoder.end();
+            decoder = null;
+
+            CommentStore store = CommentStore.getInstance();
+            CommentArchive archive = CommentArchive.getInstance();
+            if (store != null) {
+                int added = store.add(videoId, time, tmpFile);
+                tmpFile.delete();
+                Logger.info("Comment stored: " + videoId + " (" + added
+                        + " new chats)");
+            } else if (archive != null) {
+                archive.append(videoId, name, time, tmpFile);
+                tmpFile.delete();
+                Logger.info("Comment archived: " + videoId + "-" + name);
+            } else {
+                Cache.moveFile(tmpFile, file);
+                Logger.info("Comment saved: " + file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Logger.warning("failed to write comment: " + e.toString());
+            abort();
+        }
+    }
+
+    private void abort() {
+        failed = true;
+        CloseUtil.close(out);
+        out = null;
+        if (decoder != null) {
+            decoder.end();
+            decoder = null;
+        }
+        tmpFile.delete();
+    }
+}
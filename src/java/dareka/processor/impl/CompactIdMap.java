@@ -0,0 +1,379 @@
+package dareka.processor.impl;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact LRU map from the number of a movie to its type, title, length and
+ * the time of the retrieval, for {@link NicoIdInfoCache}. It is not thread
+ * safe.
+ *
+ * <p>
+ * The keys are numbers in an open addressing table with linear probing, and
+ * the values are kept in parallel primitive arrays. Titles are encoded in
+ * UTF-8 and appended to a byte arena shared by all entries, and types are
+ * indexes of a small table of type names. The LRU order is a doubly linked
+ * list by slot indexes. So an entry costs a few dozen bytes plus its title,
+ * instead of several objects.
+ *
+ * <p>
+ * The arena is compacted when more than half of it is garbage left by
+ * removed or replaced titles.
+ */
+class CompactIdMap {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NIL = -1;
+    /** titleLengths of an entry without the title. */
+    private static final int NO_TITLE = -1;
+    private static final int MAX_TYPES = 256;
+    private static final int MIN_ARENA_GARBAGE = 64 * 1024;
+
+    private final int capacity;
+    private int size = 0;
+
+    private long[] keys; // 0 means an empty slot
+    private byte[] types;
+    private int[] titleOffsets;
+    private int[] titleLengths;
+    private int[] lengths;
+    private long[] fetchedTimes;
+    private int[] prev;
+    private int[] next;
+    /** the least recently used. */
+    private int head = NIL;
+    /** the most recently used. */
+    private int tail = NIL;
+
+    private byte[] arena = new byte[1024];
+    private int arenaUsed = 0;
+    private int arenaGarbage = 0;
+
+    private final List<String> typeNames = new ArrayList<String>();
+
+    /**
+     * @param capacity maximum number of entries. the least recently used
+     * entry is removed when it is exceeded.
+     */
+    CompactIdMap(int capacity) {
+        this.capacity = capacity;
+        allocate(16);
+    }
+
+    /**
+     * Convert the id to the key of this map.
+     *
+     * @param id the number of the movie.
+     * @return key, or 0 if the id can not be a key, e.g. it has leading
+     * zeros or non-digit characters.
+     */
+    static long toKey(String id) {
+        int len = id.length();
+        if (len == 0 || len > 18 || id.charAt(0) == '0') {
+            return 0;
+        }
+
+        long key = 0;
+        for (int i = 0; i < len; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param key key from {@link #toKey(String)}.
+     * @return entry, or null if not found.
+     */
+    NicoIdInfoCache.Entry get(long key) {
+        int i = find(key);
+        if (i < 0) {
+            return null;
+        }
+
+        moveToTail(i);
+
+        return toEntry(i);
+    }
+
+    private NicoIdInfoCache.Entry toEntry(int i) {
+        String type = typeNames.get(types[i] & 0xff);
+        String id = Long.toString(keys[i]);
+        if (titleLengths[i] == NO_TITLE) {
+            return new NicoIdInfoCache.Entry(type, id);
+        }
+        return new NicoIdInfoCache.Entry(type, id,
+                new String(arena, titleOffsets[i], titleLengths[i], UTF_8),
+                lengths[i], fetchedTimes[i]);
+    }
+
+    /**
+     * Add all entries to the list from the least recently used one. The
+     * order of the entries is not changed.
+     *
+     * @param list list to add.
+     */
+    void collect(List<NicoIdInfoCache.Entry> list) {
+        for (int i = head; i != NIL; i = next[i]) {
+            list.add(toEntry(i));
+        }
+    }
+
+    /**
+     * Get an entry without changing the LRU order.
+     *
+     * @param key key from {@link #toKey(String)}.
+     * @return entry, or null if not found.
+     */
+    NicoIdInfoCache.Entry peek(long key) {
+        int i = find(key);
+        return i < 0 ? null : toEntry(i);
+    }
+
+    /**
+     * Put an entry.
+     *
+     * @param key key from {@link #toKey(String)}.
+     * @param entry entry to put.
+     * @return false if the type can not be stored because there are too
+     * many kinds of types.
+     */
+    boolean put(long key, NicoIdInfoCache.Entry entry) {
+        String type = entry.getType();
+        int typeIndex = typeNames.indexOf(type);
+        if (typeIndex < 0) {
+            if (typeNames.size() >= MAX_TYPES) {
+                return false;
+            }
+            typeIndex = typeNames.size();
+            typeNames.add(type);
+        }
+
+        int i = find(key);
+        if (i >= 0) {
+            freeTitle(i);
+            moveToTail(i);
+        } else {
+            if (size >= capacity) {
+                remove(head);
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                allocate(keys.length * 2);
+            }
+
+            i = -(find(key) + 1);
+            keys[i] = key;
+            size++;
+            linkTail(i);
+        }
+
+        types[i] = (byte) typeIndex;
+        lengths[i] = entry.getLength();
+        fetchedTimes[i] = entry.getFetchedTime();
+        if (!entry.isTitleValid()) {
+            titleLengths[i] = NO_TITLE;
+        } else {
+            byte[] bytes = entry.getTitle().getBytes(UTF_8);
+            titleOffsets[i] = appendTitle(bytes);
+            titleLengths[i] = bytes.length;
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the key, or -(slot to insert + 1) if not found.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -(i + 1);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Remove the entry in the slot. The following entries in the same
+     * cluster are shifted back, so no tombstone is needed.
+     */
+    private void remove(int i) {
+        unlink(i);
+        freeTitle(i);
+        keys[i] = 0;
+        size--;
+
+        int mask = keys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) {
+                return;
+            }
+
+            int home = hash(keys[j]) & mask;
+            // move j to i if i is between the home of j and j.
+            boolean movable = (i <= j) ? (home <= i || home > j)
+                    : (home <= i && home > j);
+            if (movable) {
+                moveSlot(j, i);
+                i = j;
+            }
+        }
+    }
+
+    private void moveSlot(int from, int to) {
+        keys[to] = keys[from];
+        types[to] = types[from];
+        titleOffsets[to] = titleOffsets[from];
+        titleLengths[to] = titleLengths[from];
+        lengths[to] = lengths[from];
+        fetchedTimes[to] = fetchedTimes[from];
+        prev[to] = prev[from];
+        next[to] = next[from];
+
+        if (prev[to] == NIL) {
+            head = to;
+        } else {
+            next[prev[to]] = to;
+        }
+        if (next[to] == NIL) {
+            tail = to;
+        } else {
+            prev[next[to]] = to;
+        }
+
+        keys[from] = 0;
+    }
+
+    private void unlink(int i) {
+        if (prev[i] == NIL) {
+            head = next[i];
+        } else {
+            next[prev[i]] = next[i];
+        }
+        if (next[i] == NIL) {
+            tail = prev[i];
+        } else {
+            prev[next[i]] = prev[i];
+        }
+    }
+
+    private void linkTail(int i) {
+        prev[i] = tail;
+        next[i] = NIL;
+        if (tail == NIL) {
+            head = i;
+        } else {
+            next[tail] = i;
+        }
+        tail = i;
+    }
+
+    private void moveToTail(int i) {
+        if (i != tail) {
+            unlink(i);
+            linkTail(i);
+        }
+    }
+
+    /**
+     * Allocate the table and insert the current entries again in the LRU
+     * order.
+     */
+    private void allocate(int length) {
+        long[] oldKeys = keys;
+        byte[] oldTypes = types;
+        int[] oldOffsets = titleOffsets;
+        int[] oldTitleLengths = titleLengths;
+        int[] oldLengths = lengths;
+        long[] oldFetchedTimes = fetchedTimes;
+        int[] oldNext = next;
+        int oldHead = head;
+
+        keys = new long[length];
+        types = new byte[length];
+        titleOffsets = new int[length];
+        titleLengths = new int[length];
+        lengths = new int[length];
+        fetchedTimes = new long[length];
+        prev = new int[length];
+        next = new int[length];
+        head = NIL;
+        tail = NIL;
+
+        for (int o = oldHead; o != NIL; o = oldNext[o]) {
+            int i = -(find(oldKeys[o]) + 1);
+            keys[i] = oldKeys[o];
+            types[i] = oldTypes[o];
+            titleOffsets[i] = oldOffsets[o];
+            titleLengths[i] = oldTitleLengths[o];
+            lengths[i] = oldLengths[o];
+            fetchedTimes[i] = oldFetchedTimes[o];
+            linkTail(i);
+        }
+    }
+
+    private void freeTitle(int i) {
+        if (titleLengths[i] != NO_TITLE) {
+            arenaGarbage += titleLengths[i];
+            titleLengths[i] = NO_TITLE;
+        }
+    }
+
+    /**
+     * @return offset of the appended title.
+     */
+    private int appendTitle(byte[] bytes) {
+        if (arenaUsed + bytes.length > arena.length) {
+            if (arenaGarbage >= MIN_ARENA_GARBAGE && arenaGarbage * 2 > arenaUsed) {
+                compactArena();
+            }
+            if (arenaUsed + bytes.length > arena.length) {
+                int length = arena.length;
+                while (arenaUsed + bytes.length > length) {
+                    length *= 2;
+                }
+                byte[] newArena = new byte[length];
+                System.arraycopy(arena, 0, newArena, 0, arenaUsed);
+                arena = newArena;
+            }
+        }
+
+        int offset = arenaUsed;
+        System.arraycopy(bytes, 0, arena, offset, bytes.length);
+        arenaUsed += bytes.length;
+        return offset;
+    }
+
+    private void compactArena() {
+        byte[] newArena = new byte[arena.length];
+        int used = 0;
+        for (int i = head; i != NIL; i = next[i]) {
+            if (titleLengths[i] != NO_TITLE) {
+                System.arraycopy(arena, titleOffsets[i], newArena, used,
+                        titleLengths[i]);
+                titleOffsets[i] = used;
+                used += titleLengths[i];
+            }
+        }
+
+        arena = newArena;
+        arenaUsed = used;
+        arenaGarbage = 0;
+    }
+}
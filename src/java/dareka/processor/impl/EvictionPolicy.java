@@ -0,0 +1,57 @@
+package dareka.processor.impl;
+
+/**
+ * Strategy to choose caches to be evicted. Used by {@link CacheEvictor}.
+ *
+ * <p>
+ * Implementations do not need to be thread safe. The evictor calls them
+ * under its own lock.
+ */
+interface EvictionPolicy {
+    /**
+     * Condition of caches which can be evicted now.
+     */
+    interface Guard {
+        boolean isEvictable(String id);
+    }
+
+    /**
+     * Set the capacity of the cache. Policies which divide the capacity into
+     * segments use this.
+     *
+     * @param capacity capacity in bytes.
+     */
+    void setCapacity(long capacity);
+
+    /**
+     * A completed cache is added.
+     *
+     * @param id id of the cache.
+     * @param size size in bytes.
+     */
+    void onAdd(String id, long size);
+
+    /**
+     * The movie is requested. This is called both on hits and misses, so
+     * the id may not be in the policy.
+     *
+     * @param id id of the cache.
+     */
+    void onAccess(String id);
+
+    /**
+     * The cache is removed.
+     *
+     * @param id id of the cache.
+     */
+    void onRemove(String id);
+
+    /**
+     * Choose the next cache to be evicted. The cache is kept in the policy
+     * until {@link #onRemove(String)} is called.
+     *
+     * @param guard condition of the victim.
+     * @return id of the victim, or null if no cache can be evicted.
+     */
+    String selectVictim(Guard guard);
+}
@@ -0,0 +1,79 @@
+package dareka.processor.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Least frequently used. Ties are broken by the last access.
+ */
+class LfuPolicy implements EvictionPolicy {
+    private final Map<String, Node> entries = new HashMap<String, Node>();
+    private final TreeSet<Node> order = new TreeSet<Node>();
+    private long clock = 0;
+
+    public void setCapacity(long capacity) {
+        // not used
+    }
+
+    public void onAdd(String id, long size) {
+        Node node = entries.get(id);
+        if (node != null) {
+            order.remove(node);
+        } else {
+            node = new Node(id);
+            entries.put(id, node);
+        }
+        node.frequency++;
+        node.time = ++clock;
+        order.add(node);
+    }
+
+    public void onAccess(String id) {
+        Node node = entries.get(id);
+        if (node == null) {
+            return;
+        }
+
+        order.remove(node);
+        node.frequency++;
+        node.time = ++clock;
+        order.add(node);
+    }
+
+    public void onRemove(String id) {
+        Node node = entries.remove(id);
+        if (node != null) {
+            order.remove(node);
+        }
+    }
+
+    public String selectVictim(Guard guard) {
+        for (Node node : order) {
+            if (guard.isEvictable(node.id)) {
+                return node.id;
+            }
+        }
+        return null;
+    }
+
+    private static class Node implements Comparable<Node> {
+        final String id;
+        long frequency = 0;
+        long time = 0;
+
+        Node(String id) {
+            this.id = id;
+        }
+
+        public int compareTo(Node o) {
+            if (frequency != o.frequency) {
+                return frequency < o.frequency ? -1 : 1;
+            }
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return id.compareTo(o.id);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package dareka.processor.impl;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used.
+ */
+class LruPolicy implements EvictionPolicy {
+    // access ordered, the eldest is the least recently used.
+    private final LinkedHashMap<String, Long> entries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    public void setCapacity(long capacity) {
+        // not used
+    }
+
+    public void onAdd(String id, long size) {
+        entries.put(id, Long.valueOf(size));
+    }
+
+    public void onAccess(String id) {
+        entries.get(id); // move to the most recently used position
+    }
+
+    public void onRemove(String id) {
+        entries.remove(id);
+    }
+
+    public String selectVictim(Guard guard) {
+        for (String id : entries.keySet()) {
+            if (guard.isEvictable(id)) {
+                return id;
+            }
+        }
+        return null;
+    }
+}
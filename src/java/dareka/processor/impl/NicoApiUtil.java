@@ -1,138 +1,215 @@
-package dareka.processor.impl;
-
-import java.io.IOException;
-import java.io.InputStream;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
-
-import dareka.common.Logger;
-
-/**
- * Utility class to treat nicovideo API.
- *
- * For maintenance, all of knowledge for nicovideo API should be placed here.
- *
- */
-public class NicoApiUtil {
-    private NicoApiUtil() {
-        // prevent instantiation
-    }
-
-    public static String getThumbURL(String type, String id) {
-        return "http://ext.nicovideo.jp/api/getthumbinfo/" + type + id;
-    }
-
-    public static String getThumbTitle(InputStream thumbResponse) {
-        SAXParserFactory f = SAXParserFactory.newInstance();
-        try {
-            SAXParser p = f.newSAXParser();
-
-            class ThumbTitleHandler extends DefaultHandler {
-                public String status = "";
-
-                private boolean inTitle;
-                public String title = "";
-
-                /* ( Javadoc)
-                 * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String, java.lang.String, java.lang.String, org.xml.sax.Attributes)
-                 */
-                @Override
-                public void startElement(String uri, String localName,
-                        String name, Attributes attributes) {
-                    if (name.equals("nicovideo_thumb_response")) {
-                        status = attributes.getValue("status");
-                    } else if (name.equals("title")) {
-                        inTitle = true;
-                    }
-                }
-
-                /* ( Javadoc)
-                 * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String, java.lang.String, java.lang.String)
-                 */
-                @Override
-                public void endElement(String uri, String localName, String name) {
-                    if (name.equals("title")) {
-                        inTitle = false;
-                    }
-                }
-
-                /* ( Javadoc)
-                 * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
-                 */
-                @Override
-                public void characters(char[] ch, int start, int length) {
-                    if (inTitle) {
-                        StringBuilder newTitle = new StringBuilder(title);
-                        newTitle.append(ch, start, length);
-                        title = newTitle.toString();
-                    }
-                }
-            }
-
-            ThumbTitleHandler h = new ThumbTitleHandler();
-            InputSource i = new InputSource(thumbResponse);
-            p.parse(i, h);
-
-            if (!"ok".equals(h.status)) {
-                return null;
-            }
-
-            return h.title;
-        } catch (ParserConfigurationException e) {
-            Logger.error(e);
-        } catch (SAXException e) {
-            Logger.error(e);
-        } catch (IOException e) {
-            Logger.error(e);
-        }
-        return null;
-    }
-
-    /*
-     * 폜̉
-    <?xml version="1.0" encoding="UTF-8"?>
-    <nicovideo_thumb_response status="fail">
-    <error>
-    <code>DELETED</code>
-    <description>deleted</description>
-    </error>
-    </nicovideo_thumb_response>
-     *
-     * ̉
-    <?xml version="1.0" encoding="UTF-8"?>
-    <nicovideo_thumb_response status="ok">
-    <thumb>
-    <video_id>sm9</video_id>
-    <title>VEꑰ -ϔY - bcS[IAzt</title>
-    <description>bcS[IAztitR[Xo[Wj</description>
-    <thumbnail_url>http://tn-skr.smilevideo.jp/smile?i=9</thumbnail_url>
-    <first_retrieve>2007-03-06T00:33:00+09:00</first_retrieve>
-    <length>5:20</length>
-    <view_counter>3835975</view_counter>
-    <comment_num>2615213</comment_num>
-    <mylist_counter>49903</mylist_counter>
-    <last_res_body>M^[\FG[U M^[\F~_ M^[\FfBA M^[\F} ... </last_res_body>
-    <watch_url>http://www.nicovideo.jp/watch/sm9</watch_url>
-    <thumb_type>video</thumb_type>
-    <tags>
-    <tag>Azt</tag>
-    <tag>bcS[IAzt</tag>
-    <tag></tag>
-    <tag>y</tag>
-    <tag>̉pY</tag>
-    <tag>eiLy[</tag>
-    <tag>smŌÂ̓</tag>
-    <tag>sm9</tag>
-    </tags>
-    </thumb>
-    </nicovideo_thumb_response>
-     */
-
-}
+package dareka.processor.impl;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import dareka.common.Logger;
+
+/**
+ * Utility class to treat nicovideo API.
+ *
+ * For maintenance, all of knowledge for nicovideo API should be placed here.
+ *
+ */
+public class NicoApiUtil {
+    /**
+     * XMLInputFactory is costly to create, and it is not guaranteed to be
+     * thread safe. So each thread keeps its own one.
+     */
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY =
+            new ThreadLocal<XMLInputFactory>() {
+                @Override
+                protected XMLInputFactory initialValue() {
+                    XMLInputFactory f = XMLInputFactory.newInstance();
+                    f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+                    f.setProperty(
+                            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                            Boolean.FALSE);
+                    return f;
+                }
+            };
+
+    private NicoApiUtil() {
+        // prevent instantiation
+    }
+
+    public static String getThumbURL(String type, String id) {
+        return "http://ext.nicovideo.jp/api/getthumbinfo/" + type + id;
+    }
+
+    /**
+     * Get the title from the response of getthumbinfo API.
+     *
+     * @param thumbResponse body of the response.
+     * @return title, or null if not available.
+     */
+    public static String getThumbTitle(InputStream thumbResponse) {
+        NicoThumbInfo info = new NicoThumbInfo();
+        try {
+            if (parseThumbInfo(thumbResponse, info, false)) {
+                return info.getTitle();
+            }
+        } catch (XMLStreamException e) {
+            Logger.error(e);
+        }
+        return null;
+    }
+
+    /**
+     * Parse the response of getthumbinfo API from the stream. Parsing stops
+     * as soon as the needed elements are read, so the rest of the stream may
+     * be left unread.
+     *
+     * @param thumbResponse body of the response.
+     * @param info information to fill. it is reset before parsing.
+     * @param needTags true to parse tags, which come at the end of the
+     * response.
+     * @return true if the status of the response is ok.
+     * @throws XMLStreamException on a malformed response or an I/O error.
+     */
+    public static boolean parseThumbInfo(InputStream thumbResponse,
+            NicoThumbInfo info, boolean needTags) throws XMLStreamException {
+        info.reset();
+
+        XMLStreamReader r =
+                XML_INPUT_FACTORY.get().createXMLStreamReader(thumbResponse);
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (r.getLocalName().equals("thumb")) {
+                        break;
+                    }
+                    continue;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                String name = r.getLocalName();
+                if (name.equals("nicovideo_thumb_response")) {
+                    info.setStatus(r.getAttributeValue(null, "status"));
+                    if (!info.isOk()) {
+                        break;
+                    }
+                } else if (name.equals("title")) {
+                    info.setTitle(r.getElementText());
+                } else if (name.equals("thumbnail_url")) {
+                    info.setThumbnailUrl(r.getElementText());
+                } else if (name.equals("length")) {
+                    info.setLength(parseLength(r.getElementText()));
+                } else if (name.equals("size_high")) {
+                    info.setSizeHigh(parseSize(r.getElementText()));
+                } else if (name.equals("size_low")) {
+                    info.setSizeLow(parseSize(r.getElementText()));
+                } else if (name.equals("tags")) {
+                    if (!needTags) {
+                        break;
+                    }
+                    parseTags(r, info);
+                    break;
+                }
+            }
+        } finally {
+            r.close();
+        }
+
+        return info.isOk();
+    }
+
+    private static void parseTags(XMLStreamReader r, NicoThumbInfo info)
+            throws XMLStreamException {
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT
+                    && r.getLocalName().equals("tag")) {
+                info.addTag(r.getElementText());
+            } else if (event == XMLStreamConstants.END_ELEMENT
+                    && r.getLocalName().equals("tags")) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param length length like "5:20" or "1:02:03".
+     * @return length in seconds, or -1 if malformed.
+     */
+    static int parseLength(String length) {
+        int seconds = 0;
+        int value = 0;
+        boolean digits = false;
+        for (int i = 0; i < length.length(); i++) {
+            char c = length.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+                if (value > 1000000) {
+                    return -1;
+                }
+            } else if (c == ':' && digits) {
+                seconds = seconds * 60 + value;
+                value = 0;
+                digits = false;
+            } else {
+                return -1;
+            }
+        }
+        if (!digits) {
+            return -1;
+        }
+        return seconds * 60 + value;
+    }
+
+    private static long parseSize(String size) {
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * 削除時の応答
+    <?xml version="1.0" encoding="UTF-8"?>
+    <nicovideo_thumb_response status="fail">
+    <error>
+    <code>DELETED</code>
+    <description>deleted</description>
+    </error>
+    </nicovideo_thumb_response>
+     *
+     * 成功時の応答
+    <?xml version="1.0" encoding="UTF-8"?>
+    <nicovideo_thumb_response status="ok">
+    <thumb>
+    <video_id>sm9</video_id>
+    <title>新・豪血寺一族 -煩悩解放 - レッツゴー！陰陽師</title>
+    <description>レッツゴー！陰陽師（フルコーラスバージョン）</description>
+    <thumbnail_url>http://tn-skr.smilevideo.jp/smile?i=9</thumbnail_url>
+    <first_retrieve>2007-03-06T00:33:00+09:00</first_retrieve>
+    <length>5:20</length>
+    <view_counter>3835975</view_counter>
+    <comment_num>2615213</comment_num>
+    <mylist_counter>49903</mylist_counter>
+    <last_res_body>ギターソロ：エリーザ ギターソロ：ミランダ ギターソロ：リディア ギターソロ：マラリヤ ... </last_res_body>
+    <watch_url>http://www.nicovideo.jp/watch/sm9</watch_url>
+    <thumb_type>video</thumb_type>
+    <tags>
+    <tag>陰陽師</tag>
+    <tag>レッツゴー！陰陽師</tag>
+    <tag>公式</tag>
+    <tag>音楽</tag>
+    <tag>懼ｧｲ時代の英雄</tag>
+    <tag>弾幕推進キャンペーン中</tag>
+    <tag>sm最古の動画</tag>
+    <tag>sm9</tag>
+    </tags>
+    </thumb>
+    </nicovideo_thumb_response>
+     */
+
+}
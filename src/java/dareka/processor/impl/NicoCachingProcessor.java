@@ -1,211 +1,302 @@
-package dareka.processor.impl;
-
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.Executor;
-import java.util.concurrent.FutureTask;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import dareka.common.CloseUtil;
-import dareka.common.Logger;
-import dareka.processor.HttpHeader;
-import dareka.processor.HttpRequestHeader;
-import dareka.processor.Processor;
-import dareka.processor.Resource;
-import dareka.processor.impl.NicoIdInfoCache.Entry;
-
-public class NicoCachingProcessor implements Processor {
-    private static final String[] SUPPORTED_METHODS = new String[] { "GET" };
-    /**
-     * SMILEVIDEO̓URL̐K\
-     */
-    // http://s-clb5.smilevideo.jp/smile?v=102982.92382
-    // 2009/3 http://smile-clb51.nicovideo.jp/smile?s=7074214.90075as3
-    private static final Pattern SM_FLV_PATTERN =
-            Pattern.compile("^http://[^/]+(?:smilevideo|nicovideo)\\.jp/smile\\?(\\w)=([^.]+)\\.\\d+(?:as3)?(low)?$");
-
-    private Executor executor;
-
-    public NicoCachingProcessor(Executor executor) {
-        this.executor = executor;
-    }
-
-    public String[] getSupportedMethods() {
-        return SUPPORTED_METHODS;
-    }
-
-    public Pattern getSupportedURLAsPattern() {
-        return SM_FLV_PATTERN;
-    }
-
-    public String getSupportedURLAsString() {
-        return null;
-    }
-
-    public Resource onRequest(HttpRequestHeader requestHeader)
-            throws IOException {
-        Matcher m = SM_FLV_PATTERN.matcher(requestHeader.getURI());
-        if (!m.find()) {
-            // it must not happen...
-            return Resource.get(Resource.Type.URL, requestHeader.getURI());
-        }
-
-        MovieData data = new MovieData(m);
-
-        if (data.getCache().exists()) {
-            Logger.info("using cache         : " + data.getCache().getCacheFileName());
-            if (Boolean.getBoolean("touchCache")) {
-                data.getCache().touch();
-            }
-            Resource r =
-                    Resource.get(Resource.Type.URL,
-                            data.getCache().getURLString());
-            r.setResponseHeader(HttpHeader.CONTENT_TYPE, "video/flv");
-
-            return r;
-        }
-
-        FutureTask<String> retrieveTitlteTask = null;
-        if (Boolean.getBoolean("title")
-                && (data.getIdInfo() == null || !data.getIdInfo().isTitleValid())) {
-            retrieveTitlteTask =
-                    new FutureTask<String>(new NicoCachingTitleRetriever(
-                            data.getType(), data.getId()));
-            executor.execute(retrieveTitlteTask);
-        }
-
-        Logger.info("no cache found      : " + data.getCache().getCacheFileName());
-
-        // [nl] uEŨW[ƁANCł̃W[Ή
-        requestHeader.removeMessageHeader("Range");
-        requestHeader.removeMessageHeader("If-Range");
-        long tmpSize = data.getCache().tmpLength();
-        InputStream cacheInput = null;
-        // [nl] dDLɂȂꍇ́A2߂̃RlNVł͎Ă镪̃LbV𗘗p
-        // ܂A2߂̃RlNV͕ۑȂBAIɃW[
-        // TODO:r邩ȂA܂͂
-        boolean dupconnect = Cache.getDLFlag(data.getCache().getId());
-
-        // [nl] W[[
-        if (tmpSize != 0
-                && (dupconnect || Boolean.getBoolean("resumeDownload"))) {
-            tmpSize = data.getCache().tmpLength();
-            requestHeader.setMessageHeader("Range", "bytes=" + tmpSize + "-");
-            cacheInput =
-                    new BufferedInputStream(data.getCache().getTmpInputStream());
-        }
-
-        Resource r;
-        try { // ensure cacheInput.close() in error cases.
-            // [nl] DLXgɓ
-            Cache.setDLFlag(data.getCache().getId(), Integer.MAX_VALUE);
-
-            r = Resource.get(Resource.Type.URL, requestHeader.getURI());
-
-            r.addTransferListener(new NicoCachingListener(data.getCache(),
-                    retrieveTitlteTask, cacheInput, dupconnect));
-        } catch (RuntimeException e) {
-            Logger.error(e);
-            CloseUtil.close(cacheInput);
-            Cache.setDLFlag(data.getCache().getId(), -1);
-            throw e;
-        }
-
-        return r;
-    }
-
-    /**
-     * Class for manage various data for a movie.
-     *
-     */
-    static class MovieData {
-        private String format;
-        private String id;
-        private String suffix;
-        private Entry idInfo;
-        private String postfix;
-        private String type;
-        private Cache cache;
-
-        MovieData(Matcher m) {
-            initializeFormatIdSuffix(m);
-            initializeIdInfo(getId());
-            initializePostfix(format);
-            initializeTypeCache(getIdInfo(), format);
-
-            useAlternateCacheIfNecessary();
-        }
-
-        private void initializeFormatIdSuffix(Matcher m) {
-            format = m.group(1);
-            id = m.group(2);
-            suffix = m.group(3);
-        }
-
-        private void initializeIdInfo(String id) {
-            if (Boolean.getBoolean("title")) {
-                idInfo = NicoIdInfoCache.getInstance().get(id);
-            } else {
-                idInfo = null;
-            }
-        }
-
-        private void initializePostfix(String format) {
-            if (format.equals("v")) {
-                postfix = ".flv";
-            } else if (format.equals("m")) {
-                postfix = ".mp4";
-            } else if (format.equals("s")) {
-                postfix = ".swf";
-            } else {
-                postfix = ".unknown";
-            }
-        }
-
-        private void initializeTypeCache(Entry idInfo, String format) {
-            if (idInfo == null) {
-                // this may not be correct, but we can not know without idInfo...
-                if (format.endsWith("s")) {
-                    type = "nm";
-                } else {
-                    type = "sm";
-                }
-                cache = new Cache(type + id, postfix);
-            } else {
-                type = idInfo.getType();
-                cache = new Cache(type + id, postfix, idInfo.getTitle());
-            }
-        }
-
-        private void useAlternateCacheIfNecessary() {
-            if (!getCache().exists() && suffix != null) {
-                if (idInfo == null) {
-                    cache = new Cache(type + id + suffix, postfix);
-                } else {
-                    cache =
-                            new Cache(type + id + suffix, postfix,
-                                    idInfo.getTitle());
-                }
-            }
-        }
-
-        public Cache getCache() {
-            return cache;
-        }
-
-        public Entry getIdInfo() {
-            return idInfo;
-        }
-
-        public String getType() {
-            return type;
-        }
-
-        public String getId() {
-            return id;
-        }
-    }
-
-}
+package dareka.processor.impl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+import dareka.processor.HttpHeader;
+import dareka.processor.HttpRequestHeader;
+import dareka.processor.HttpResponseHeader;
+import dareka.processor.Processor;
+import dareka.processor.Resource;
+import dareka.processor.StringResource;
+import dareka.processor.TransferListener;
+import dareka.processor.impl.NicoIdInfoCache.Entry;
+
+public class NicoCachingProcessor implements Processor {
+    private static final String[] SUPPORTED_METHODS =
+            new String[] { HttpHeader.GET, HttpHeader.HEAD };
+    /**
+     * SMILEVIDEOの動画URLの正規表現
+     */
+    // http://s-clb5.smilevideo.jp/smile?v=102982.92382
+    // 2009/3頃から http://smile-clb51.nicovideo.jp/smile?s=7074214.90075as3
+    private static final Pattern SM_FLV_PATTERN =
+            Pattern.compile("^http://[^/]+(?:smilevideo|nicovideo)\\.jp/smile\\?(\\w)=([^.]+)\\.\\d+(?:as3)?(low)?$");
+
+    public String[] getSupportedMethods() {
+        return SUPPORTED_METHODS;
+    }
+
+    public Pattern getSupportedURLAsPattern() {
+        return SM_FLV_PATTERN;
+    }
+
+    public String getSupportedURLAsString() {
+        return null;
+    }
+
+    public Resource onRequest(HttpRequestHeader requestHeader)
+            throws IOException {
+        Matcher m = SM_FLV_PATTERN.matcher(requestHeader.getURI());
+        if (!m.find()) {
+            // it must not happen...
+            return Resource.get(Resource.Type.URL, requestHeader.getURI());
+        }
+
+        MovieData data = new MovieData(m);
+        boolean head = HttpHeader.HEAD.equals(requestHeader.getMethod());
+
+        if (!head) {
+            data.getCache().recordAccess();
+        }
+
+        // pin before checking the existence so that the cache is not
+        // evicted while it is being sent.
+        data.getCache().pin();
+        boolean pinned = true;
+        try { // ensure unpin() in cases of no cache or errors.
+            if (data.getCache().exists()) {
+                CacheMetadata metadata = data.getCache().getMetadata();
+                if (metadata != null && metadata.isNotModified(requestHeader)) {
+                    Logger.info("not modified        : " + data.getCache().getCacheFileName());
+                    Resource r = StringResource.getNotModified();
+                    setValidators(r, metadata);
+                    return r;
+                }
+
+                if (head) {
+                    // answer from the metadata without opening the file.
+                    Resource r =
+                            StringResource.getHeadResponse(data.getCache().length());
+                    r.setResponseHeader(HttpHeader.CONTENT_TYPE,
+                            data.getCache().getContentType());
+                    setValidators(r, metadata);
+                    return r;
+                }
+
+                Logger.info("using cache         : " + data.getCache().getCacheFileName());
+                if (Boolean.getBoolean("touchCache")) {
+                    data.getCache().touch();
+                }
+                Resource r =
+                        Resource.get(Resource.Type.URL,
+                                data.getCache().getURLString());
+                r.setResponseHeader(HttpHeader.CONTENT_TYPE,
+                        data.getCache().getContentType());
+                setValidators(r, metadata);
+                r.addTransferListener(new Unpinner(data.getCache()));
+                pinned = false; // the listener unpins it.
+
+                return r;
+            }
+        } finally {
+            if (pinned) {
+                data.getCache().unpin();
+            }
+        }
+
+        if (head) {
+            // nothing to cache.
+            return Resource.get(Resource.Type.URL, requestHeader.getURI());
+        }
+
+        if (Cache.isIndexing()) {
+            // the cache may be in a directory which is not scanned yet.
+            // making a new cache here would be a duplicate, so just relay.
+            Logger.info("relaying (indexing) : " + data.getCache().getCacheFileName());
+            return Resource.get(Resource.Type.URL, requestHeader.getURI());
+        }
+
+        Future<String> retrieveTitlteTask = null;
+        if (Boolean.getBoolean("title")
+                && (data.getIdInfo() == null || !data.getIdInfo().isTitleValid())) {
+            // shared with other connections for the same movie.
+            retrieveTitlteTask = NicoTitleService.getInstance().retrieve(
+                    data.getType(), data.getId());
+        }
+
+        Logger.info("no cache found      : " + data.getCache().getCacheFileName());
+
+        // [nl] ブラウザのレジューム無効と、NCでのレジューム対応
+        requestHeader.removeMessageHeader("Range");
+        requestHeader.removeMessageHeader("If-Range");
+        // [nl] 二重DLになる場合は、2つめのコネクションでは持っている分のキャッシュを利用する
+        // また、2つめのコネクションは保存しない。かつ、強制的にレジュームする
+        boolean dupconnect = !data.getCache().beginDownload();
+        long tmpSize = data.getCache().tmpLength();
+        InputStream cacheInput = null;
+
+        Resource r;
+        try { // ensure cacheInput.close() and endDownload() in error cases.
+            // [nl] レジュームするよー
+            if (tmpSize != 0
+                    && (dupconnect || Boolean.getBoolean("resumeDownload"))) {
+                tmpSize = data.getCache().tmpLength();
+                requestHeader.setMessageHeader("Range", "bytes=" + tmpSize + "-");
+                cacheInput =
+                        new BufferedInputStream(data.getCache().getTmpInputStream());
+            }
+
+            r = Resource.get(Resource.Type.URL, requestHeader.getURI());
+
+            r.addTransferListener(new NicoCachingListener(data.getCache(),
+                    retrieveTitlteTask, cacheInput, dupconnect));
+        } catch (IOException e) {
+            CloseUtil.close(cacheInput);
+            if (!dupconnect) {
+                data.getCache().endDownload();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            Logger.error(e);
+            CloseUtil.close(cacheInput);
+            if (!dupconnect) {
+                data.getCache().endDownload();
+            }
+            throw e;
+        }
+
+        return r;
+    }
+
+    private static void setValidators(Resource r, CacheMetadata metadata) {
+        if (metadata == null) {
+            return;
+        }
+
+        if (metadata.getLastModified() != null) {
+            r.setResponseHeader(HttpHeader.LAST_MODIFIED,
+                    metadata.getLastModified());
+        }
+        if (metadata.getETag() != null) {
+            r.setResponseHeader(HttpHeader.ETAG, metadata.getETag());
+        }
+    }
+
+    /**
+     * Unpin the cache at the end of sending it.
+     */
+    static class Unpinner implements TransferListener {
+        private Cache cache;
+
+        Unpinner(Cache cache) {
+            this.cache = cache;
+        }
+
+        public void onResponseHeader(HttpResponseHeader responseHeader) {
+            // do nothing
+        }
+
+        public void onTransferBegin(OutputStream receiverOut) {
+            // do nothing
+        }
+
+        public void onTransferring(byte[] buf, int length) {
+            // do nothing
+        }
+
+        public void onTransferEnd(boolean completed) {
+            cache.unpin();
+        }
+    }
+
+    /**
+     * Class for manage various data for a movie.
+     *
+     */
+    static class MovieData {
+        private String format;
+        private String id;
+        private String suffix;
+        private Entry idInfo;
+        private String postfix;
+        private String type;
+        private Cache cache;
+
+        MovieData(Matcher m) {
+            initializeFormatIdSuffix(m);
+            initializeIdInfo(getId());
+            initializePostfix(format);
+            initializeTypeCache(getIdInfo(), format);
+
+            useAlternateCacheIfNecessary();
+        }
+
+        private void initializeFormatIdSuffix(Matcher m) {
+            format = m.group(1);
+            id = m.group(2);
+            suffix = m.group(3);
+        }
+
+        private void initializeIdInfo(String id) {
+            if (Boolean.getBoolean("title")) {
+                idInfo = NicoIdInfoCache.getInstance().get(id);
+            } else {
+                idInfo = null;
+            }
+        }
+
+        private void initializePostfix(String format) {
+            if (format.equals("v")) {
+                postfix = ".flv";
+            } else if (format.equals("m")) {
+                postfix = ".mp4";
+            } else if (format.equals("s")) {
+                postfix = ".swf";
+            } else {
+                postfix = ".unknown";
+            }
+        }
+
+        private void initializeTypeCache(Entry idInfo, String format) {
+            if (idInfo == null) {
+                // this may not be correct, but we can not know without idInfo...
+                if (format.endsWith("s")) {
+                    type = "nm";
+                } else {
+                    type = "sm";
+                }
+                cache = new Cache(type + id, postfix);
+            } else {
+                type = idInfo.getType();
+                cache = new Cache(type + id, postfix, idInfo.getTitle());
+            }
+        }
+
+        private void useAlternateCacheIfNecessary() {
+            if (!getCache().exists() && suffix != null) {
+                if (idInfo == null) {
+                    cache = new Cache(type + id + suffix, postfix);
+                } else {
+                    cache =
+                            new Cache(type + id + suffix, postfix,
+                                    idInfo.getTitle());
+                }
+            }
+        }
+
+        public Cache getCache() {
+            return cache;
+        }
+
+        public Entry getIdInfo() {
+            return idInfo;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+}
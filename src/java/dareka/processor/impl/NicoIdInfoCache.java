@@ -1,223 +1,377 @@
-package dareka.processor.impl;
-
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-
-import dareka.common.Logger;
-
-/**
- * Remember type(sm/ax/ca, etc.), title of movies. The size is shrunk
- * automatically when the rest of the free memory is low.
- *
- * <p>
- * This class has responsibility similar to WeakHashMap. However WeakHashMap is
- * not appropriate for cache because it release all entries when the GC works.
- *
- */
-public class NicoIdInfoCache {
-    private static final NicoIdInfoCache SINGLETON_INSTANCE =
-            new NicoIdInfoCache();
-    private static final int MAX_RECENT = 10000;
-
-    private ReferenceQueue<Entry> queue = new ReferenceQueue<Entry>();
-    private ConcurrentHashMap<String, EntryReference> id2title =
-            new ConcurrentHashMap<String, EntryReference>();
-    // final is necessary to prevent 2 threads from entering
-    // synchronized block when the reference is changed on feature.
-    private final LinkedList<Entry> recentEntry = new LinkedList<Entry>();
-
-    public static NicoIdInfoCache getInstance() {
-        return SINGLETON_INSTANCE;
-    }
-
-    /**
-     * Get information of id.
-     *
-     * @param id the number of the movie. (sm/ax/ca is not included)
-     * @return information
-     */
-    public Entry get(String id) {
-        expunge();
-
-        EntryReference entryRef = id2title.get(id);
-        if (entryRef == null) {
-            return null;
-        }
-
-        Entry entry = entryRef.get();
-        if (entry == null) {
-            return null;
-        }
-
-        return entry;
-    }
-
-    /**
-     * Put information of id.
-     *
-     * @param type sm/ax/ca, etd.
-     * @param id the number of the movie. (sm/ax/ca is not included)
-     * @param title
-     */
-    public void put(String type, String id, String title) {
-        if (type == null) {
-            throw new IllegalArgumentException("type must not be null");
-        }
-        if (id == null) {
-            throw new IllegalArgumentException("id must not be null");
-        }
-        if (title == null) {
-            throw new IllegalArgumentException("title must not be null");
-        }
-
-
-        Entry entry = new Entry(type, id, title);
-        constructReference(id, entry);
-    }
-
-    /**
-     * Put incomplete information of id without the title.
-     * If there already is complete information, this method does nothing.
-     *
-     * @param type sm/ax/ca, etd.
-     * @param id the number of the movie. (sm/ax/ca is not included)
-     */
-    public void putOnlyTypeAndId(String type, String id) {
-        Entry existingEntry = get(id);
-        if (existingEntry != null && existingEntry.isTitleValid()) {
-            return;
-        }
-
-        if (type == null) {
-            throw new IllegalArgumentException("type must not be null");
-        }
-        if (id == null) {
-            throw new IllegalArgumentException("id must not be null");
-        }
-
-        Entry entry = new Entry(type, id);
-        constructReference(id, entry);
-    }
-
-    private void constructReference(String id, Entry entry) {
-        expunge();
-
-        EntryReference entryRef = new EntryReference(entry, queue);
-        id2title.put(id, entryRef);
-
-        // keep strong reference for recent entries to protect them from GC.
-        synchronized (recentEntry) {
-            if (!recentEntry.remove(entry)) {
-                if (recentEntry.size() >= MAX_RECENT) {
-                    recentEntry.poll();
-                }
-            }
-
-            recentEntry.add(entry);
-        }
-    }
-
-    public int size() {
-        expunge();
-
-        return id2title.size();
-    }
-
-    private void expunge() {
-        EntryReference ref;
-        while ((ref = (EntryReference) queue.poll()) != null) {
-            String id = ref.getId();
-            id2title.remove(id);
-            Logger.debugWithThread("title cache expunged: " + id);
-        }
-    }
-
-    public static class Entry {
-        // This String object represents that title is not found.
-        // Constants may be shared with other String objects,
-        // so we need a new String object.
-        // Additionally, this is a kind of the null object pattern.
-        private final static String INVALID_TITLE = new String("nicocache-unknown-title");
-
-        private String type;
-        private String id;
-        private String title;
-
-        Entry(String type, String id, String title) {
-            this.type = type;
-            this.id = id;
-            this.title = title;
-        }
-
-        Entry(String type, String id) {
-            this.type = type;
-            this.id = id;
-            this.title = INVALID_TITLE;
-        }
-
-        /* ( Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof Entry) {
-                Entry other = (Entry) obj;
-                return type.equals(other.type) && id.equals(other.id)
-                        && title.equals(other.title);
-            } else {
-                return false;
-            }
-        }
-
-        /* ( Javadoc)
-         * @see java.lang.Object#hashCode()
-         */
-        @Override
-        public int hashCode() {
-            return type.hashCode() ^ id.hashCode() ^ title.hashCode();
-        }
-
-        public String getType() {
-            return type;
-        }
-
-        public String getId() {
-            return id;
-        }
-
-        public String getTitle() {
-            return title;
-        }
-
-        public boolean isTitleValid() {
-            // intended String comparison. this require identity, not equality.
-            if (title == INVALID_TITLE) {
-                return false;
-            } else {
-                return true;
-            }
-        }
-    }
-
-    /**
-     * Soft reference to the information. This make it possible for GC
-     * collects the Entry object on low free memory.
-     *
-     */
-    static class EntryReference extends SoftReference<Entry> {
-        private String id;
-
-        EntryReference(Entry entry, ReferenceQueue<Entry> q) {
-            super(entry, q);
-            this.id = entry.getId();
-        }
-
-        String getId() {
-            return id;
-        }
-
-    }
-
-}
+package dareka.processor.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remember type(sm/ax/ca, etc.), title of movies.
+ *
+ * <p>
+ * The entries are kept in LRU order up to titleCacheSize. The map is split
+ * into segments by the id, and each segment has its own lock and LRU list,
+ * so every operation is O(1) and threads rarely wait for each other. The
+ * least recently used entry of the segment is dropped when the segment is
+ * full. The entries are packed in primitive arrays by {@link CompactIdMap},
+ * so millions of titles fit in a small heap.
+ *
+ * <p>
+ * If the log file is opened by {@link #open(File)}, the entries are
+ * loaded from it and changes are appended to it by {@link NicoIdInfoLog},
+ * so titles survive restarts.
+ *
+ */
+public class NicoIdInfoCache {
+    private static final NicoIdInfoCache SINGLETON_INSTANCE =
+            new NicoIdInfoCache(Integer.getInteger("titleCacheSize", 100000).intValue());
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile NicoIdInfoLog log;
+
+    public static NicoIdInfoCache getInstance() {
+        return SINGLETON_INSTANCE;
+    }
+
+    /**
+     * @param capacity maximum number of entries.
+     */
+    NicoIdInfoCache(int capacity) {
+        int segmentCapacity = Math.max((capacity + SEGMENTS - 1) / SEGMENTS, 1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    private Segment getSegment(String id) {
+        return segments[(id.hashCode() & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Load the entries from the log file and start logging changes.
+     *
+     * @param logFile log file. null means in-memory only.
+     */
+    public synchronized void open(File logFile) {
+        close();
+        if (logFile == null) {
+            return;
+        }
+
+        NicoIdInfoLog newLog = new NicoIdInfoLog(logFile);
+        // older entries first, so the LRU order is restored.
+        for (Entry entry : newLog.load()) {
+            getSegment(entry.getId()).put(entry.getId(), entry, true);
+        }
+        newLog.compact(getEntries());
+        log = newLog;
+    }
+
+    /**
+     * Compact and close the log file.
+     */
+    public synchronized void close() {
+        NicoIdInfoLog l = log;
+        if (l != null) {
+            log = null;
+            l.compact(getEntries());
+            l.close();
+        }
+    }
+
+    private List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<Entry>();
+        for (Segment s : segments) {
+            s.collect(list);
+        }
+        return list;
+    }
+
+    /**
+     * Get information of id.
+     *
+     * @param id the number of the movie. (sm/ax/ca is not included)
+     * @return information
+     */
+    public Entry get(String id) {
+        Entry entry = getSegment(id).get(id);
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Put information of id.
+     *
+     * @param type sm/ax/ca, etd.
+     * @param id the number of the movie. (sm/ax/ca is not included)
+     * @param title
+     */
+    public void put(String type, String id, String title) {
+        put(type, id, title, -1);
+    }
+
+    /**
+     * Put information of id with the length of the movie.
+     *
+     * @param type sm/ax/ca, etd.
+     * @param id the number of the movie. (sm/ax/ca is not included)
+     * @param title
+     * @param length length of the movie in seconds, or -1 if unknown.
+     */
+    public void put(String type, String id, String title, int length) {
+        if (type == null) {
+            throw new IllegalArgumentException("type must not be null");
+        }
+        if (id == null) {
+            throw new IllegalArgumentException("id must not be null");
+        }
+        if (title == null) {
+            throw new IllegalArgumentException("title must not be null");
+        }
+
+
+        Entry entry =
+                new Entry(type, id, title, length, System.currentTimeMillis());
+        if (getSegment(id).put(id, entry, true)) {
+            writeLog(entry);
+        }
+    }
+
+    /**
+     * Put incomplete information of id without the title.
+     * If there already is complete information, this method does nothing.
+     *
+     * @param type sm/ax/ca, etd.
+     * @param id the number of the movie. (sm/ax/ca is not included)
+     */
+    public void putOnlyTypeAndId(String type, String id) {
+        if (type == null) {
+            throw new IllegalArgumentException("type must not be null");
+        }
+        if (id == null) {
+            throw new IllegalArgumentException("id must not be null");
+        }
+
+        Entry entry = new Entry(type, id);
+        if (getSegment(id).put(id, entry, false)) {
+            writeLog(entry);
+        }
+    }
+
+    private void writeLog(Entry entry) {
+        NicoIdInfoLog l = log;
+        if (l != null) {
+            l.append(entry);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the number of {@link #get(String)} which found the entry.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of {@link #get(String)} which did not find the
+     * entry.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * A part of the map with its own lock and LRU order. Ids are numbers
+     * in most cases, and they are kept in a {@link CompactIdMap}. The others
+     * are kept in an ordinary map.
+     */
+    private static class Segment {
+        private final CompactIdMap compactMap;
+        private final LinkedHashMap<String, Entry> otherMap;
+
+        Segment(final int capacity) {
+            compactMap = new CompactIdMap(capacity);
+            otherMap = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized Entry get(String id) {
+            long key = CompactIdMap.toKey(id);
+            if (key != 0) {
+                Entry entry = compactMap.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return otherMap.get(id);
+        }
+
+        /**
+         * @param overwriteValidTitle false to keep the existing entry which
+         * has the title.
+         * @return true if the entry is changed.
+         */
+        synchronized boolean put(String id, Entry entry, boolean overwriteValidTitle) {
+            long key = CompactIdMap.toKey(id);
+            Entry existingEntry = key != 0 ? compactMap.peek(key) : null;
+            if (existingEntry == null) {
+                existingEntry = otherMap.get(id);
+            }
+            if (existingEntry != null && existingEntry.isTitleValid()
+                    && (!overwriteValidTitle || !entry.isNewerThan(existingEntry))) {
+                return false;
+            }
+            if (existingEntry != null && !existingEntry.isTitleValid()
+                    && !entry.isTitleValid()
+                    && existingEntry.getType().equals(entry.getType())) {
+                return false;
+            }
+
+            if (key != 0 && compactMap.put(key, entry)) {
+                otherMap.remove(id);
+            } else {
+                otherMap.put(id, entry);
+            }
+            return true;
+        }
+
+        /**
+         * Add all entries to the list, older ones first.
+         */
+        synchronized void collect(List<Entry> list) {
+            compactMap.collect(list);
+            list.addAll(otherMap.values());
+        }
+
+        synchronized int size() {
+            return compactMap.size() + otherMap.size();
+        }
+    }
+
+    public static class Entry {
+        // This String object represents that title is not found.
+        // Constants may be shared with other String objects,
+        // so we need a new String object.
+        // Additionally, this is a kind of the null object pattern.
+        private final static String INVALID_TITLE = new String("nicocache-unknown-title");
+
+        private String type;
+        private String id;
+        private String title;
+        private int length = -1;
+        private long fetchedTime = 0;
+
+        Entry(String type, String id, String title) {
+            this.type = type;
+            this.id = id;
+            this.title = title;
+        }
+
+        Entry(String type, String id, String title, int length,
+                long fetchedTime) {
+            this.type = type;
+            this.id = id;
+            this.title = title;
+            this.length = length;
+            this.fetchedTime = fetchedTime;
+        }
+
+        Entry(String type, String id) {
+            this.type = type;
+            this.id = id;
+            this.title = INVALID_TITLE;
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Entry) {
+                Entry other = (Entry) obj;
+                return type.equals(other.type) && id.equals(other.id)
+                        && title.equals(other.title);
+            } else {
+                return false;
+            }
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return type.hashCode() ^ id.hashCode() ^ title.hashCode();
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        /**
+         * @return length of the movie in seconds, or -1 if unknown.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return the time when the title is retrieved, or 0 if unknown.
+         */
+        public long getFetchedTime() {
+            return fetchedTime;
+        }
+
+        /**
+         * Whether this entry has something new compared with the other.
+         * The same title without the length adds nothing.
+         */
+        boolean isNewerThan(Entry other) {
+            return !title.equals(other.title) || !type.equals(other.type)
+                    || (length >= 0 && length != other.length);
+        }
+
+        public boolean isTitleValid() {
+            // intended String comparison. this require identity, not equality.
+            if (title == INVALID_TITLE) {
+                return false;
+            } else {
+                return true;
+            }
+        }
+    }
+
+}
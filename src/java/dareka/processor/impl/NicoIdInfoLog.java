@@ -0,0 +1,173 @@
+package dareka.processor.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import dareka.common.CloseUtil;
+import dareka.common.Logger;
+
+/**
+ * Persistent log of {@link NicoIdInfoCache}, so that titles learned before
+ * a restart do not need to be retrieved again.
+ *
+ * <p>
+ * The log file is a journal like {@link CacheIndex}. {@link #compact(List)}
+ * writes a snapshot of all entries, and each change is appended to it after
+ * that. At startup the journal is replayed by {@link #load()}, and a later
+ * record of an id overrides earlier ones.
+ */
+class NicoIdInfoLog {
+    private static final int MAGIC = 0x4e435449; // "NCTI"
+    private static final int VERSION = 1;
+    private static final int ENTRY = 'E';
+
+    private final File logFile;
+    private DataOutputStream journal;
+
+    NicoIdInfoLog(File logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Read the log file.
+     *
+     * @return entries in the order of the records. empty if the file does
+     * not exist or is broken.
+     */
+    synchronized List<NicoIdInfoCache.Entry> load() {
+        List<NicoIdInfoCache.Entry> entries =
+                new ArrayList<NicoIdInfoCache.Entry>();
+        if (!logFile.isFile()) {
+            return entries;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(logFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Logger.info("title log is incompatible, ignored");
+                return entries;
+            }
+
+            while (true) {
+                int tag;
+                try {
+                    tag = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (tag != ENTRY) {
+                    throw new IOException("broken record: " + tag);
+                }
+
+                try {
+                    entries.add(read(in));
+                } catch (EOFException e) {
+                    // the last record is not completed because of the crash.
+                    Logger.debug("title log is truncated");
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Logger.warning("failed to read title log: " + e.toString());
+        } finally {
+            CloseUtil.close(in);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Append an entry.
+     *
+     * @param entry entry to append.
+     */
+    synchronized void append(NicoIdInfoCache.Entry entry) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.writeByte(ENTRY);
+            write(journal, entry);
+            journal.flush();
+        } catch (IOException e) {
+            Logger.warning("failed to write title log: " + e.toString());
+            CloseUtil.close(journal);
+            journal = null;
+        }
+    }
+
+    /**
+     * Write a snapshot of the entries and start journaling.
+     *
+     * @param entries all entries, older ones first.
+     */
+    synchronized void compact(List<NicoIdInfoCache.Entry> entries) {
+        CloseUtil.close(journal);
+        journal = null;
+
+        File tmpFile =
+                new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (NicoIdInfoCache.Entry entry : entries) {
+                out.writeByte(ENTRY);
+                write(out, entry);
+            }
+            out.close();
+            out = null;
+
+            Cache.moveFile(tmpFile, logFile);
+
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(logFile, true)));
+        } catch (IOException e) {
+            CloseUtil.close(out);
+            tmpFile.delete();
+            Logger.warning("failed to write title log: " + e.toString());
+        }
+    }
+
+    synchronized void close() {
+        CloseUtil.close(journal);
+        journal = null;
+    }
+
+    private static NicoIdInfoCache.Entry read(DataInputStream in)
+            throws IOException {
+        String type = in.readUTF();
+        String id = in.readUTF();
+        String title = CacheIndex.Record.readNullableUTF(in);
+        int length = in.readInt();
+        long fetchedTime = in.readLong();
+        if (title == null) {
+            return new NicoIdInfoCache.Entry(type, id);
+        }
+        return new NicoIdInfoCache.Entry(type, id, title, length, fetchedTime);
+    }
+
+    private static void write(DataOutputStream out, NicoIdInfoCache.Entry entry)
+            throws IOException {
+        out.writeUTF(entry.getType());
+        out.writeUTF(entry.getId());
+        CacheIndex.Record.writeNullableUTF(out,
+                entry.isTitleValid() ? entry.getTitle() : null);
+        out.writeInt(entry.getLength());
+        out.writeLong(entry.getFetchedTime());
+    }
+}
@@ -0,0 +1,124 @@
+package dareka.processor.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Information of a movie from getthumbinfo API, parsed by
+ * {@link NicoApiUtil#parseThumbInfo(java.io.InputStream, NicoThumbInfo, boolean)}.
+ *
+ * <p>
+ * An instance can be reused for another response after {@link #reset()}.
+ * It is not thread safe.
+ */
+public class NicoThumbInfo {
+    private String status;
+    private String title;
+    private int length;
+    private long sizeHigh;
+    private long sizeLow;
+    private String thumbnailUrl;
+    private final List<String> tags = new ArrayList<String>();
+
+    public NicoThumbInfo() {
+        reset();
+    }
+
+    /**
+     * Clear all values.
+     */
+    public void reset() {
+        status = null;
+        title = null;
+        length = -1;
+        sizeHigh = -1;
+        sizeLow = -1;
+        thumbnailUrl = null;
+        tags.clear();
+    }
+
+    /**
+     * @return true if the response is status="ok".
+     */
+    public boolean isOk() {
+        return "ok".equals(status);
+    }
+
+    /**
+     * @return status of the response, or null if not found.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    void setStatus(String status) {
+        this.status = status;
+    }
+
+    /**
+     * @return title, or null if not found.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    void setTitle(String title) {
+        this.title = title;
+    }
+
+    /**
+     * @return length of the movie in seconds, or -1 if unknown.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * @return size of the normal quality movie in bytes, or -1 if unknown.
+     */
+    public long getSizeHigh() {
+        return sizeHigh;
+    }
+
+    void setSizeHigh(long sizeHigh) {
+        this.sizeHigh = sizeHigh;
+    }
+
+    /**
+     * @return size of the low quality movie in bytes, or -1 if unknown.
+     */
+    public long getSizeLow() {
+        return sizeLow;
+    }
+
+    void setSizeLow(long sizeLow) {
+        this.sizeLow = sizeLow;
+    }
+
+    /**
+     * @return URL of the thumbnail, or null if not found.
+     */
+    public String getThumbnailUrl() {
+        return thumbnailUrl;
+    }
+
+    void setThumbnailUrl(String thumbnailUrl) {
+        this.thumbnailUrl = thumbnailUrl;
+    }
+
+    /**
+     * @return tags. empty if not parsed.
+     */
+    public List<String> getTags() {
+        return Collections.unmodifiableList(tags);
+    }
+
+    void addTag(String tag) {
+        tags.add(tag);
+    }
+}
@@ -0,0 +1,240 @@
+package dareka.processor.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dareka.common.Logger;
+
+/**
+ * Retrieve titles of movies by {@link NicoCachingTitleRetriever}.
+ *
+ * <p>
+ * Only one retrieval runs for an id at a time, and concurrent callers share
+ * its result. A failed retrieval is remembered for a while and the id is not
+ * retried until then, so deleted movies do not hit the API every time. The
+ * retrievals run on a small pool of threads with a bounded queue, and each
+ * of them gives up after titleTimeout. A caller which must not wait can
+ * register a callback by {@link #whenDone(Future, Runnable)}.
+ *
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>titleThreads: the number of threads to retrieve titles.
+ * <li>titleTimeout: timeout of a retrieval in milliseconds.
+ * </ul>
+ */
+class NicoTitleService {
+    private static final NicoTitleService SINGLETON_INSTANCE =
+            new NicoTitleService();
+    private static final int QUEUE_SIZE = 64;
+    /** how long to skip a movie which has no title, e.g. deleted. */
+    private static final long NOT_FOUND_TTL = 60 * 60 * 1000;
+    /** how long to skip a movie after an error, e.g. network error. */
+    private static final long ERROR_TTL = 60 * 1000;
+    private static final int MAX_FAILURES = 10000;
+
+    private final ConcurrentHashMap<String, Future<String>> inFlight =
+            new ConcurrentHashMap<String, Future<String>>();
+    /** the time until which the id is not retried, by the id. */
+    private final ConcurrentHashMap<String, Long> failures =
+            new ConcurrentHashMap<String, Long>();
+    private final ThreadPoolExecutor pool;
+
+    static NicoTitleService getInstance() {
+        return SINGLETON_INSTANCE;
+    }
+
+    private NicoTitleService() {
+        int threads = Math.max(Integer.getInteger("titleThreads", 2).intValue(), 1);
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "TitleRetriever-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start retrieving the title, or join the retrieval which is running.
+     *
+     * @param type sm/ax/ca, etc.
+     * @param id the number of the movie.
+     * @return future of the title, which is null if not found. null if the
+     * movie failed recently or too many retrievals are waiting.
+     */
+    Future<String> retrieve(String type, String id) {
+        final String key = type + id;
+        long now = System.currentTimeMillis();
+
+        Long until = failures.get(key);
+        if (until != null) {
+            if (now < until.longValue()) {
+                Logger.debugWithThread("title retrieving skipped: " + key);
+                return null;
+            }
+            failures.remove(key, until);
+        }
+
+        Future<String> running = inFlight.get(key);
+        if (running != null) {
+            return running;
+        }
+
+        TitleTask task = new TitleTask(
+                new NicoCachingTitleRetriever(type, id, getTimeout())) {
+            @Override
+            protected void done() {
+                inFlight.remove(key, this);
+                recordResult(key, this);
+                super.done();
+            }
+        };
+        running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            return running;
+        }
+
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, task);
+            Logger.debugWithThread("title retrieving queue is full: " + key);
+            return null;
+        }
+        return task;
+    }
+
+    private void recordResult(String key, Future<String> task) {
+        long ttl;
+        try {
+            if (task.get() != null) {
+                return;
+            }
+            ttl = NOT_FOUND_TTL;
+        } catch (InterruptedException e) {
+            ttl = ERROR_TTL;
+        } catch (ExecutionException e) {
+            ttl = ERROR_TTL;
+        } catch (RuntimeException e) { // CancellationException
+            ttl = ERROR_TTL;
+        }
+
+        if (failures.size() >= MAX_FAILURES) {
+            expungeFailures();
+        }
+        failures.put(key, Long.valueOf(System.currentTimeMillis() + ttl));
+    }
+
+    private void expungeFailures() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Long>> it =
+                failures.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().longValue() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Run the callback when the retrieval is finished. If it is already
+     * finished, the callback runs on the calling thread. Otherwise it runs
+     * on the thread of the retrieval, so it must not block.
+     *
+     * @param future future from {@link #retrieve(String, String)}.
+     * @param callback callback, which can get the title by
+     * {@link #getTitleNow(Future)}.
+     */
+    static void whenDone(Future<String> future, Runnable callback) {
+        if (future instanceof TitleTask) {
+            ((TitleTask) future).addCallback(callback);
+        } else if (future.isDone()) {
+            callback.run();
+        } else {
+            throw new IllegalArgumentException("unknown future: " + future);
+        }
+    }
+
+    /**
+     * Get the title without waiting.
+     *
+     * @param future future from {@link #retrieve(String, String)}. may be
+     * null.
+     * @return title, or null if not available or not retrieved yet.
+     */
+    static String getTitleNow(Future<String> future) {
+        if (future == null || !future.isDone()) {
+            return null;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Logger.debugWithThread(e);
+        } catch (Exception e) {
+            Logger.warning("title retrieving failed: " + e.toString());
+        }
+        return null;
+    }
+
+    private static int getTimeout() {
+        return Integer.getInteger("titleTimeout", 10000).intValue();
+    }
+
+    private static class TitleTask extends FutureTask<String> {
+        private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+        TitleTask(Callable<String> callable) {
+            super(callable);
+        }
+
+        void addCallback(Runnable callback) {
+            synchronized (this) {
+                if (callbacks != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            runCallback(callback);
+        }
+
+        @Override
+        protected void done() {
+            List<Runnable> list;
+            synchronized (this) {
+                list = callbacks;
+                callbacks = null;
+            }
+            for (Runnable callback : list) {
+                runCallback(callback);
+            }
+        }
+
+        private static void runCallback(Runnable callback) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                Logger.error(e);
+            }
+        }
+    }
+}
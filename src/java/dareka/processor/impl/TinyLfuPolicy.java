@@ -0,0 +1,262 @@
+package dareka.processor.impl;
+
+import java.util.LinkedHashMap;
+
+/**
+ * W-TinyLFU (Einziger, Friedman and Manes), measured in bytes.
+ *
+ * <p>
+ * New caches enter a small LRU window. A cache leaving the window is a
+ * candidate for the main area, which is a segmented LRU (probation and
+ * protected). When the main area is full, the candidate is admitted only if
+ * its estimated frequency is higher than that of the main victim; otherwise
+ * the candidate itself is evicted. Frequencies are estimated by a count-min
+ * sketch which records all requests including misses, so one-time views do
+ * not push out movies which are replayed constantly.
+ */
+class TinyLfuPolicy implements EvictionPolicy {
+    private static final int WINDOW_PERCENTAGE = 1;
+    private static final int PROTECTED_PERCENTAGE = 80; // of the main area
+
+    // all of them are ordered from the least recently used.
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long capacity = Long.MAX_VALUE;
+
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    private long getWindowCapacity() {
+        return capacity / 100 * WINDOW_PERCENTAGE;
+    }
+
+    private long getMainCapacity() {
+        return capacity - getWindowCapacity();
+    }
+
+    private long getProtectedCapacity() {
+        return getMainCapacity() / 100 * PROTECTED_PERCENTAGE;
+    }
+
+    public void onAdd(String id, long size) {
+        onRemove(id);
+        window.put(id, size);
+        sketch.ensureCapacity(size());
+    }
+
+    public void onAccess(String id) {
+        sketch.increment(id);
+
+        long size = window.remove(id);
+        if (size >= 0) {
+            window.put(id, size);
+            return;
+        }
+
+        size = probation.remove(id);
+        if (size >= 0) {
+            protectedSegment.put(id, size);
+            // demote the overflow to the probation.
+            while (protectedSegment.bytes > getProtectedCapacity()
+                    && protectedSegment.entries.size() > 1) {
+                String demoted = protectedSegment.eldest();
+                probation.put(demoted, protectedSegment.remove(demoted));
+            }
+            return;
+        }
+
+        size = protectedSegment.remove(id);
+        if (size >= 0) {
+            protectedSegment.put(id, size);
+        }
+    }
+
+    public void onRemove(String id) {
+        if (window.remove(id) < 0 && probation.remove(id) < 0) {
+            protectedSegment.remove(id);
+        }
+    }
+
+    public String selectVictim(Guard guard) {
+        while (window.bytes > getWindowCapacity()) {
+            String candidate = window.selectVictim(guard);
+            if (candidate == null) {
+                break;
+            }
+
+            long candidateSize = window.get(candidate);
+            if (mainBytes() + candidateSize <= getMainCapacity()) {
+                // there is room, no need to evict anything for it.
+                probation.put(candidate, window.remove(candidate));
+                continue;
+            }
+
+            String victim = probation.selectVictim(guard);
+            if (victim == null) {
+                victim = protectedSegment.selectVictim(guard);
+            }
+            if (victim == null) {
+                return candidate;
+            }
+
+            if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                probation.put(candidate, window.remove(candidate));
+                return victim;
+            } else {
+                return candidate;
+            }
+        }
+
+        String victim = probation.selectVictim(guard);
+        if (victim == null) {
+            victim = protectedSegment.selectVictim(guard);
+        }
+        if (victim == null) {
+            victim = window.selectVictim(guard);
+        }
+        return victim;
+    }
+
+    private long mainBytes() {
+        return probation.bytes + protectedSegment.bytes;
+    }
+
+    private int size() {
+        return window.entries.size() + probation.entries.size()
+                + protectedSegment.entries.size();
+    }
+
+    /**
+     * LRU list with the total size.
+     */
+    private static class Segment {
+        final LinkedHashMap<String, Long> entries =
+                new LinkedHashMap<String, Long>();
+        long bytes = 0;
+
+        void put(String id, long size) {
+            entries.put(id, Long.valueOf(size));
+            bytes += size;
+        }
+
+        /**
+         * @return the size, or -1 if not found.
+         */
+        long get(String id) {
+            Long size = entries.get(id);
+            return size == null ? -1 : size.longValue();
+        }
+
+        /**
+         * @return the size, or -1 if not found.
+         */
+        long remove(String id) {
+            Long size = entries.remove(id);
+            if (size == null) {
+                return -1;
+            }
+            bytes -= size.longValue();
+            return size.longValue();
+        }
+
+        String eldest() {
+            return entries.keySet().iterator().next();
+        }
+
+        String selectVictim(Guard guard) {
+            for (String id : entries.keySet()) {
+                if (guard.isEvictable(id)) {
+                    return id;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4 rows of counters saturating at 15. All counters
+     * are halved periodically, so old popularity fades out.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS =
+                { 0x97cb3127, 0xb3a5b1f9, 0x6b2d5f93, 0xc2b2ae35 };
+
+        private byte[][] table;
+        private int mask;
+        private int additions;
+        private int sampleSize;
+
+        FrequencySketch() {
+            resize(1024);
+        }
+
+        /**
+         * Grow the table to keep the error rate for the number of entries.
+         * Counts are lost on growing.
+         */
+        void ensureCapacity(int entries) {
+            if (entries > table[0].length) {
+                resize(Integer.highestOneBit(entries - 1) << 1);
+            }
+        }
+
+        private void resize(int width) {
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            additions = 0;
+            sampleSize = width * 10;
+        }
+
+        void increment(String id) {
+            int hash = id.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            if (min >= MAX_COUNT) {
+                return;
+            }
+
+            // conservative update: increment only the smallest counters.
+            for (int i = 0; i < DEPTH; i++) {
+                int j = index(hash, i);
+                if (table[i][j] == min) {
+                    table[i][j]++;
+                }
+            }
+
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String id) {
+            int hash = id.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package dareka.processor.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Find the id and the title of the movie in a watch page which is given
+ * chunk by chunk, for {@link NicoRecordingWatchListener}.
+ *
+ * <p>
+ * All patterns start with fixed markers, so one pattern of all markers
+ * scans each character only once. Each pattern is tried only at its
+ * markers, and the text before the first marker which is still waiting for
+ * more text is discarded. So the memory is bounded by the longest pattern
+ * instead of the whole page.
+ *
+ * <p>
+ * The patterns and their priorities are the same as
+ * {@link NicoCachingTitleRetriever#getTitleFromResponse(String)} and the
+ * former whole page matching: the first match of the pattern with the
+ * highest priority wins. Scanning is done when the patterns with the
+ * highest priority are matched.
+ */
+class WatchPageScanner {
+    private static final Rule[] RULES = {
+        // In some page such as my memory, the URL does not contain
+        // the type and id of the movie. This may not work correctly
+        // when the user comment matches this pattern...
+        new Rule(true, 0, 256,
+                "(?:video_id = |id:\\s*)'([a-z]{2})(\\d+)'"),
+        new Rule(true, 1, 4096,
+                "videoDetail&quot;:\\{&quot;v&quot;:&quot;.+?&quot;,&quot;id&quot;:&quot;([a-z]+)(\\d+)&quot;"),
+        // only the title in the JSON instead of the whole JSON.
+        new Rule(false, 0, 64 * 1024,
+                "<div id=\"watchAPIDataContainer\" style=\"display:none\">\\{(?:(?!</div>).)*?&quot;title&quot; *: *&quot;(.+?)&quot;"),
+        new Rule(false, 1, 4096,
+                "<p class=\"video_title\"[^>]*>(.+?)(?:<a|</p)"),
+        new Rule(false, 2, 16 * 1024,
+                "var Video = \\{[^\\}]+title:\\s*'(.+?)',\\s"),
+        new Rule(false, 3, 4096,
+                "<h1[^>]*>(.+?)</h1>"),
+    };
+    /** the markers of RULES. the n-th group is the marker of RULES[n - 1]. */
+    private static final Pattern MARKER_PATTERN = Pattern.compile(
+            "(video_id = |id:)|(videoDetail&quot;:)"
+                    + "|(<div id=\"watchAPIDataContainer\")"
+                    + "|(<p class=\"video_title\")|(var Video = \\{)|(<h1)");
+    private static final int MAX_MARKER_LENGTH = 64;
+
+    private final boolean needId;
+    private final StringBuilder window = new StringBuilder();
+    /** the position in the window to find the next marker. */
+    private int scanFrom = 0;
+    /** markers which need more text, in the order of the positions. */
+    private final List<Candidate> pending = new ArrayList<Candidate>();
+    /** groups of the first match of each rule. */
+    private final String[][] results = new String[RULES.length][];
+    private boolean finished = false;
+
+    /**
+     * @param needId true if the id of the movie is not known.
+     */
+    WatchPageScanner(boolean needId) {
+        this.needId = needId;
+    }
+
+    /**
+     * Scan the next chunk of the page.
+     *
+     * @param text decoded text of the chunk.
+     */
+    void scan(CharSequence text) {
+        if (isDone()) {
+            return;
+        }
+
+        window.append(text);
+        matchPending();
+        findMarkers();
+        discardScanned();
+    }
+
+    /**
+     * Resolve the markers waiting for more text at the end of the page.
+     */
+    void finish() {
+        finished = true;
+        matchPending();
+        pending.clear();
+        window.setLength(0);
+    }
+
+    /**
+     * @return true if no more text is needed.
+     */
+    boolean isDone() {
+        return finished
+                || (results[indexOf(false, 0)] != null
+                        && (!needId || results[indexOf(true, 0)] != null));
+    }
+
+    /**
+     * @return type(sm/ax/ca, etc.) and the number of the movie, or null if
+     * not found.
+     */
+    String[] getTypeAndId() {
+        return getBest(true);
+    }
+
+    /**
+     * @return title, or null if not found.
+     */
+    String getTitle() {
+        String[] groups = getBest(false);
+        if (groups == null) {
+            return null;
+        }
+
+        String title = groups[0];
+        switch (getBestPriority(false)) {
+        case 0:
+            return NicoCachingTitleRetriever.ascii2native(
+                    NicoCachingTitleRetriever.unescape(title));
+        case 2:
+            return NicoCachingTitleRetriever.ascii2native(title);
+        default:
+            return NicoCachingTitleRetriever.unescape(
+                    NicoCachingTitleRetriever.stripTags(title));
+        }
+    }
+
+    private String[] getBest(boolean forId) {
+        int priority = getBestPriority(forId);
+        return priority < 0 ? null : results[indexOf(forId, priority)];
+    }
+
+    private int getBestPriority(boolean forId) {
+        for (int i = 0; i < RULES.length; i++) {
+            if (RULES[i].forId == forId && results[i] != null) {
+                return RULES[i].priority;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(boolean forId, int priority) {
+        for (int i = 0; i < RULES.length; i++) {
+            if (RULES[i].forId == forId && RULES[i].priority == priority) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("no rule: " + priority);
+    }
+
+    private void matchPending() {
+        boolean[] waiting = new boolean[RULES.length];
+        for (Iterator<Candidate> it = pending.iterator(); it.hasNext();) {
+            Candidate c = it.next();
+            // a later occurrence must wait for the earlier one.
+            if (waiting[c.rule]) {
+                continue;
+            }
+            if (isWaiting(c)) {
+                waiting[c.rule] = true;
+            } else {
+                it.remove();
+            }
+        }
+    }
+
+    private void findMarkers() {
+        Matcher m = MARKER_PATTERN.matcher(window);
+        m.region(scanFrom, window.length());
+        int end = scanFrom;
+        while (m.find()) {
+            end = m.end();
+            int rule = getRule(m);
+            if (results[rule] != null || (RULES[rule].forId && !needId)) {
+                continue;
+            }
+
+            Candidate c = new Candidate(m.start(), rule);
+            // keep the order of the occurrences of the rule, so that the
+            // first one wins.
+            if (isPending(rule) || isWaiting(c)) {
+                pending.add(c);
+            }
+        }
+
+        // a marker may be split at the end of the window.
+        scanFrom = Math.max(end, window.length() - MAX_MARKER_LENGTH + 1);
+        scanFrom = Math.max(scanFrom, 0);
+    }
+
+    private static int getRule(Matcher m) {
+        for (int i = 1; i <= m.groupCount(); i++) {
+            if (m.start(i) != -1) {
+                return i - 1;
+            }
+        }
+        throw new IllegalStateException("no marker");
+    }
+
+    private boolean isPending(int rule) {
+        for (Candidate c : pending) {
+            if (c.rule == rule) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Try the rule at the marker, and record the groups if it matches.
+     *
+     * @return true if the marker needs more text.
+     */
+    private boolean isWaiting(Candidate c) {
+        if (results[c.rule] != null) {
+            return false;
+        }
+
+        Rule rule = RULES[c.rule];
+        Matcher m = rule.pattern.matcher(window);
+        m.region(c.pos, window.length());
+        boolean matched = m.lookingAt();
+        // more text may change or make the match.
+        boolean canWait = !finished
+                && window.length() - c.pos < rule.maxSpan;
+        if (m.hitEnd() && canWait) {
+            return true;
+        }
+
+        if (matched) {
+            String[] groups = new String[m.groupCount()];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = m.group(i + 1);
+            }
+            results[c.rule] = groups;
+        }
+        return false;
+    }
+
+    private void discardScanned() {
+        int keepFrom = scanFrom;
+        for (Candidate c : pending) {
+            keepFrom = Math.min(keepFrom, c.pos);
+        }
+
+        window.delete(0, keepFrom);
+        scanFrom -= keepFrom;
+        for (Candidate c : pending) {
+            c.pos -= keepFrom;
+        }
+    }
+
+    private static class Rule {
+        final boolean forId;
+        /** 0 is the highest. */
+        final int priority;
+        /** the maximum length of the text to wait for the match. */
+        final int maxSpan;
+        final Pattern pattern;
+
+        Rule(boolean forId, int priority, int maxSpan, String regex) {
+            this.forId = forId;
+            this.priority = priority;
+            this.maxSpan = maxSpan;
+            this.pattern = Pattern.compile(regex);
+        }
+    }
+
+    private static class Candidate {
+        int pos;
+        final int rule;
+
+        Candidate(int pos, int rule) {
+            this.pos = pos;
+            this.rule = rule;
+        }
+    }
+}
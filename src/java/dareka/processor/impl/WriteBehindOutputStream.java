@@ -0,0 +1,230 @@
+package dareka.processor.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import dareka.common.Logger;
+
+/**
+ * Output stream which writes to the disk on another thread, so that a slow
+ * disk does not stall the thread relaying the data to the browser.
+ *
+ * <p>
+ * Written data is copied into pooled buffers and queued in a bounded ring
+ * for each stream. One writer thread drains the rings of all streams. When
+ * the ring is full, the writing thread waits for the disk (block), or gives
+ * up with an IOException (drop) so that only the caching fails.
+ * {@link #flush()} and {@link #close()} wait until all queued data is
+ * written, and report the error occurred on the writer thread.
+ *
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>cacheWriteBehindBuffers: size of the ring in 32KB buffers. 0 means
+ * writing synchronously.
+ * <li>cacheWriteBehindFull: block or drop.
+ * </ul>
+ */
+class WriteBehindOutputStream extends OutputStream {
+    private static final int BUF_SIZE = 32 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private static final BlockingQueue<byte[]> pool =
+            new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+    private static final BlockingQueue<WriteBehindOutputStream> readyStreams =
+            new LinkedBlockingQueue<WriteBehindOutputStream>();
+    private static Thread writerThread;
+
+    private final OutputStream out;
+    private final BlockingQueue<Chunk> ring;
+    private final boolean dropWhenFull;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private int pending = 0; // guarded by this
+    private volatile IOException error;
+    private boolean closed = false;
+
+    /**
+     * Wrap the stream according to the properties.
+     *
+     * @param out stream to the disk.
+     * @return wrapped stream, or out itself if write-behind is disabled.
+     */
+    static OutputStream wrap(OutputStream out) {
+        int buffers = Integer.getInteger("cacheWriteBehindBuffers", 0).intValue();
+        if (buffers <= 0) {
+            return out;
+        }
+
+        boolean drop = "drop".equals(System.getProperty("cacheWriteBehindFull"));
+        return new WriteBehindOutputStream(out, buffers, drop);
+    }
+
+    WriteBehindOutputStream(OutputStream out, int buffers, boolean dropWhenFull) {
+        this.out = out;
+        this.ring = new ArrayBlockingQueue<Chunk>(buffers);
+        this.dropWhenFull = dropWhenFull;
+        startWriterThread();
+    }
+
+    private static synchronized void startWriterThread() {
+        if (writerThread != null) {
+            return;
+        }
+
+        writerThread = new Thread("CacheWriter") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        readyStreams.take().drain();
+                    } catch (InterruptedException e) {
+                        Logger.debugWithThread(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        // keep the thread alive for other streams.
+                        Logger.error(e);
+                    }
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkError();
+
+        while (len > 0) {
+            int n = Math.min(len, BUF_SIZE);
+            byte[] buf = pool.poll();
+            if (buf == null) {
+                buf = new byte[BUF_SIZE];
+            }
+            System.arraycopy(b, off, buf, 0, n);
+            enqueue(new Chunk(buf, n));
+
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void enqueue(Chunk c) throws IOException {
+        synchronized (this) {
+            pending++;
+        }
+
+        if (dropWhenFull) {
+            if (!ring.offer(c)) {
+                done(c);
+                throw new IOException("write-behind buffers are full");
+            }
+        } else {
+            try {
+                ring.put(c);
+            } catch (InterruptedException e) {
+                done(c);
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+
+        if (scheduled.compareAndSet(false, true)) {
+            readyStreams.add(this);
+        }
+    }
+
+    /**
+     * Write all queued chunks. Called on the writer thread.
+     */
+    private void drain() {
+        while (true) {
+            Chunk c;
+            while ((c = ring.poll()) != null) {
+                if (error == null) {
+                    try {
+                        out.write(c.buf, 0, c.length);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                done(c);
+            }
+
+            scheduled.set(false);
+            // a chunk may be queued after poll() returned null and before
+            // scheduled becomes false.
+            if (ring.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void done(Chunk c) {
+        pool.offer(c.buf);
+        synchronized (this) {
+            pending--;
+            if (pending == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        IOException e = error;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            try {
+                while (pending > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+
+        checkError();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Chunk {
+        final byte[] buf;
+        final int length;
+
+        Chunk(byte[] buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+    }
+}
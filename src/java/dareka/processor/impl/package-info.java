@@ -1,5 +1,5 @@
-/**
- * Implementations for Processor.
- *
- */
+/**
+ * Implementations for Processor.
+ *
+ */
 package dareka.processor.impl;
\ No newline at end of file
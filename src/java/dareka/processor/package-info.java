@@ -1,7 +1,7 @@
-/**
- * Main part of the proxy framework. Provides Processor and related classes.
- *
- * <p>This package is an abstraction layer.
- * Therefore this package should not contain logic for any particular hosts.</p>
- */
+/**
+ * Main part of the proxy framework. Provides Processor and related classes.
+ *
+ * <p>This package is an abstraction layer.
+ * Therefore this package should not contain logic for any particular hosts.</p>
+ */
 package dareka.processor;
\ No newline at end of file